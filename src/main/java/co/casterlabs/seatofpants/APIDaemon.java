@@ -10,6 +10,7 @@ import co.casterlabs.rhs.server.HttpServerBuilder;
 import co.casterlabs.rhs.session.HttpSession;
 import co.casterlabs.rhs.session.WebsocketListener;
 import co.casterlabs.rhs.session.WebsocketSession;
+import co.casterlabs.seatofpants.relay.BufferPool;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
@@ -34,12 +35,48 @@ public class APIDaemon {
                                     String.join("\n", SeatOfPants.getInstanceAddresses())
                                 );
 
+                            case "/instances/resources":
+                                return HttpResponse.newFixedLengthResponse(
+                                    StandardHttpStatus.OK,
+                                    SeatOfPants.getResourceUsage().toString(true)
+                                );
+
                             case "/connections/count":
                                 return HttpResponse.newFixedLengthResponse(
                                     StandardHttpStatus.OK,
                                     String.valueOf(SeatOfPants.getConnectionCount())
                                 );
 
+                            case "/metrics":
+                                return HttpResponse.newFixedLengthResponse(
+                                    StandardHttpStatus.OK,
+                                    SeatOfPants.getMetrics()
+                                );
+
+                            case "/admission/stats":
+                                return HttpResponse.newFixedLengthResponse(
+                                    StandardHttpStatus.OK,
+                                    SeatOfPants.admission.toJson().toString(true)
+                                );
+
+                            case "/creations/stats":
+                                return HttpResponse.newFixedLengthResponse(
+                                    StandardHttpStatus.OK,
+                                    SeatOfPants.creations.toJson().toString(true)
+                                );
+
+                            case "/scaling/forecast":
+                                return HttpResponse.newFixedLengthResponse(
+                                    StandardHttpStatus.OK,
+                                    SeatOfPants.forecaster.toJson().toString(true)
+                                );
+
+                            case "/relay/buffers":
+                                return HttpResponse.newFixedLengthResponse(
+                                    StandardHttpStatus.OK,
+                                    BufferPool.get().toJson().toString(true)
+                                );
+
                             default:
                                 return HttpResponse.newFixedLengthResponse(StandardHttpStatus.NOT_FOUND, "Not found.");
                         }
@@ -0,0 +1,152 @@
+package co.casterlabs.seatofpants;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.rakurai.json.element.JsonObject;
+import co.casterlabs.seatofpants.providers.Instance;
+
+/**
+ * Hands out instance slots to waiting clients in the order they arrived. Once
+ * the queue is too deep (or a client has waited too long) the client gets
+ * turned away instead of holding onto a socket and a thread.
+ */
+public class AdmissionQueue {
+    private static final int WAIT_SAMPLES = 1024;
+
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger(0);
+
+    private final AtomicLongArray waitSamples = new AtomicLongArray(WAIT_SAMPLES);
+    private final AtomicInteger waitSampleCount = new AtomicInteger(0);
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Blocks until a slot has been reserved for the caller.
+     *
+     * @return null if the client should be rejected, either because the queue is
+     *         full or because it waited for too long.
+     */
+    public @Nullable Instance admit() {
+        // Fast path, nobody is waiting so we're allowed to jump straight in.
+        if (this.waiters.isEmpty()) {
+            Instance instance = SeatOfPants.placement.reserve();
+            if (instance != null) {
+                this.admitted.increment();
+                return instance;
+            }
+        }
+
+        int maxDepth = SeatOfPants.config.admissionMaxQueueDepth;
+        if (maxDepth >= 0 && this.depth.get() >= maxDepth) {
+            this.rejected.increment();
+            return null;
+        }
+
+        long maxWaitMs = SeatOfPants.config.admissionMaxWaitSeconds >= 0 ? //
+            TimeUnit.SECONDS.toMillis(SeatOfPants.config.admissionMaxWaitSeconds) : //
+            TimeUnit.SECONDS.toMillis(SeatOfPants.config.providerMaxCreationTimeSeconds * 2);
+
+        Waiter waiter = new Waiter(Thread.currentThread(), System.currentTimeMillis());
+        this.waiters.add(waiter);
+        this.depth.incrementAndGet();
+        this.queued.increment();
+
+        // Don't wait for the next tick() to get more capacity going.
+        SeatOfPants.requestCapacity();
+
+        try {
+            while (true) {
+                if (this.waiters.peek() == waiter) {
+                    Instance instance = SeatOfPants.placement.reserve();
+                    if (instance != null) {
+                        this.admitted.increment();
+                        return instance;
+                    }
+                }
+
+                long remainingMs = waiter.enqueuedAt + maxWaitMs - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    this.timedOut.increment();
+                    return null;
+                }
+
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remainingMs));
+                Thread.interrupted(); // Clear, we check the deadline ourselves.
+            }
+        } finally {
+            this.waiters.remove(waiter);
+            this.depth.decrementAndGet();
+            this.recordWait(System.currentTimeMillis() - waiter.enqueuedAt);
+            this.signal(); // Let the next in line have a go.
+        }
+    }
+
+    /**
+     * Wakes up whoever is at the front of the queue, call this whenever capacity
+     * may have freed up.
+     */
+    public void signal() {
+        Waiter head = this.waiters.peek();
+        if (head != null) {
+            LockSupport.unpark(head.thread);
+        }
+    }
+
+    public int depth() {
+        return this.depth.get();
+    }
+
+    private void recordWait(long waitedMs) {
+        int idx = this.waitSampleCount.getAndIncrement();
+        this.waitSamples.set(Math.floorMod(idx, WAIT_SAMPLES), waitedMs);
+    }
+
+    /**
+     * @param percentile 0-1
+     *
+     * @return the wait time of recently queued clients, in milliseconds.
+     */
+    public long waitPercentile(double percentile) {
+        int count = Math.min(this.waitSampleCount.get(), WAIT_SAMPLES);
+        if (count == 0) return 0;
+
+        long[] samples = new long[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = this.waitSamples.get(i);
+        }
+        Arrays.sort(samples);
+
+        int idx = (int) Math.ceil(percentile * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, idx))];
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.put("depth", this.depth());
+        json.put("maxDepth", SeatOfPants.config.admissionMaxQueueDepth);
+        json.put("admitted", this.admitted.sum());
+        json.put("queued", this.queued.sum());
+        json.put("rejected", this.rejected.sum());
+        json.put("timedOut", this.timedOut.sum());
+        json.put("waitP50Ms", this.waitPercentile(.5));
+        json.put("waitP90Ms", this.waitPercentile(.9));
+        json.put("waitP99Ms", this.waitPercentile(.99));
+        return json;
+    }
+
+    private static record Waiter(Thread thread, long enqueuedAt) {
+    }
+
+}
@@ -82,6 +82,9 @@ public class Bootstrap {
         }
 
         if (isNew) {
+            SeatOfPants.healthChecker = new HealthChecker();
+            SeatOfPants.scaler.start();
+
             // Init the provider.
             SeatOfPants.provider = SeatOfPants.config.providerType.newInstance();
             SeatOfPants.provider.loadConfig(SeatOfPants.config.providerConfig);
@@ -104,7 +107,7 @@ public class Bootstrap {
         }
 
         // Create or destroy warm instances.
-        SeatOfPants.tick();
+        SeatOfPants.scaler.trigger(Scaler.Trigger.CONFIG_CHANGED);
     }
 
 }
@@ -0,0 +1,207 @@
+package co.casterlabs.seatofpants;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.casterlabs.rakurai.json.element.JsonObject;
+import co.casterlabs.seatofpants.config.Config;
+import co.casterlabs.seatofpants.providers.InstanceCreationException;
+import lombok.NonNull;
+
+/**
+ * Runs instance creations on a bounded pool so that a burst of demand can't
+ * spawn an unbounded amount of threads (or provider calls). Every creation is
+ * claimed on the ledger before it's queued and stays there until it has
+ * finished, so queued and running creations both count towards capacity and
+ * {@link Config#maxInstancesLimit}.
+ */
+public class CreationExecutor {
+    private static final int LATENCY_SAMPLES = 256;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final AtomicInteger reserved = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+
+    private final AtomicLongArray latencySamples = new AtomicLongArray(LATENCY_SAMPLES);
+    private final AtomicInteger latencySampleCount = new AtomicInteger(0);
+
+    private final LongAdder queueWaitMillis = new LongAdder();
+    private final LongAdder creationMillis = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        1, 1,
+        30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        Thread.ofPlatform().name("Instance creation ", 0).factory()
+    );
+
+    {
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param  existing how many instances already exist.
+     *
+     * @return          how many of the wanted creations may go ahead. Each one
+     *                  must be followed by exactly one {@link #submit(Creation)}.
+     */
+    public int claim(long wanted, int existing) {
+        while (true) {
+            int reserved = this.reserved.get();
+
+            long headroom = SeatOfPants.config.maxInstancesLimit == -1 ? //
+                Long.MAX_VALUE : //
+                SeatOfPants.config.maxInstancesLimit - existing - reserved;
+
+            int granted = (int) Math.min(wanted, headroom);
+            if (granted <= 0) return 0;
+
+            if (this.reserved.compareAndSet(reserved, reserved + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * Queues a previously claimed creation, never blocks.
+     */
+    public void submit(@NonNull Creation creation) {
+        this.resize();
+
+        long queuedAt = System.currentTimeMillis();
+        this.executor.execute(() -> {
+            long startedAt = System.currentTimeMillis();
+            this.queueWaitMillis.add(startedAt - queuedAt);
+            this.running.incrementAndGet();
+
+            try {
+                creation.create();
+
+                long tookMs = System.currentTimeMillis() - startedAt;
+                this.creationMillis.add(tookMs);
+                this.completed.increment();
+                this.recordLatency(tookMs);
+            } catch (Throwable t) {
+                // Providers may throw more than they declare, none of it can be allowed to leak the ledger entry.
+                this.failed.increment();
+                SeatOfPants.LOGGER.fatal("Unable to create instance! THIS IS BAD!\n%s", t);
+
+                // Have another go shortly, but not in a tight loop if the provider fails fast.
+                CompletableFuture
+                    .delayedExecutor(RETRY_DELAY_MS, TimeUnit.MILLISECONDS)
+                    .execute(() -> SeatOfPants.scaler.trigger(Scaler.Trigger.CREATION_FAILED));
+            } finally {
+                this.running.decrementAndGet();
+                this.reserved.decrementAndGet();
+                SeatOfPants.admission.signal();
+            }
+        });
+    }
+
+    private void resize() {
+        int parallelism = Math.max(1, SeatOfPants.config.creationParallelism);
+        if (this.executor.getMaximumPoolSize() == parallelism) return;
+
+        synchronized (this.executor) {
+            // The core size must never exceed the max size, so the order matters.
+            if (parallelism > this.executor.getMaximumPoolSize()) {
+                this.executor.setMaximumPoolSize(parallelism);
+                this.executor.setCorePoolSize(parallelism);
+            } else {
+                this.executor.setCorePoolSize(parallelism);
+                this.executor.setMaximumPoolSize(parallelism);
+            }
+        }
+    }
+
+    /**
+     * @return creations that have been claimed but haven't finished, queued or
+     *         not.
+     */
+    public int reserved() {
+        return this.reserved.get();
+    }
+
+    public int running() {
+        return this.running.get();
+    }
+
+    public int queued() {
+        return this.executor.getQueue().size();
+    }
+
+    private void recordLatency(long tookMs) {
+        int idx = this.latencySampleCount.getAndIncrement();
+        this.latencySamples.set(Math.floorMod(idx, LATENCY_SAMPLES), tookMs);
+    }
+
+    /**
+     * @param  percentile 0-1
+     *
+     * @return            how long recent successful creations took (including
+     *                    readiness), in milliseconds. -1 if there are none yet.
+     */
+    public long latencyPercentile(double percentile) {
+        int count = Math.min(this.latencySampleCount.get(), LATENCY_SAMPLES);
+        if (count == 0) return -1;
+
+        long[] samples = new long[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = this.latencySamples.get(i);
+        }
+        Arrays.sort(samples);
+
+        int idx = (int) Math.ceil(percentile * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, idx))];
+    }
+
+    public void renderMetrics(StringBuilder sb) {
+        Metrics.header(sb, "sop_creation_queue_depth", "gauge", "Claimed creations waiting for a free creation thread.");
+        Metrics.sample(sb, "sop_creation_queue_depth", null, this.queued());
+
+        Metrics.header(sb, "sop_creations_running", "gauge", "Creations currently running.");
+        Metrics.sample(sb, "sop_creations_running", null, this.running());
+
+        Metrics.header(sb, "sop_creation_queue_wait_milliseconds_total", "counter", "Time creations spent queued before they started.");
+        Metrics.sample(sb, "sop_creation_queue_wait_milliseconds_total", null, this.queueWaitMillis.sum());
+
+        Metrics.header(sb, "sop_creation_duration_milliseconds_total", "counter", "Time successful creations took, including readiness.");
+        Metrics.sample(sb, "sop_creation_duration_milliseconds_total", null, this.creationMillis.sum());
+
+        Metrics.header(sb, "sop_creations_completed_total", "counter", "Creations that finished successfully.");
+        Metrics.sample(sb, "sop_creations_completed_total", null, this.completed.sum());
+
+        Metrics.header(sb, "sop_creations_failed_total", "counter", "Creations that failed, for any reason.");
+        Metrics.sample(sb, "sop_creations_failed_total", null, this.failed.sum());
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.put("parallelism", SeatOfPants.config.creationParallelism);
+        json.put("reserved", this.reserved());
+        json.put("queued", this.queued());
+        json.put("running", this.running());
+        json.put("completed", this.completed.sum());
+        json.put("failed", this.failed.sum());
+        json.put("latencyP50Ms", this.latencyPercentile(.5));
+        json.put("latencyP90Ms", this.latencyPercentile(.9));
+        json.put("latencyP99Ms", this.latencyPercentile(.99));
+        return json;
+    }
+
+    @FunctionalInterface
+    public static interface Creation {
+
+        public void create() throws InstanceCreationException;
+
+    }
+
+}
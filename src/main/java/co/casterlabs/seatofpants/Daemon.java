@@ -1,28 +1,134 @@
 package co.casterlabs.seatofpants;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import lombok.SneakyThrows;
 
 public class Daemon {
+    private static final long ACCEPT_RETRY_DELAY_MS = 100;
 
+    /**
+     * Runs acceptorThreads accept loops. Where SO_REUSEPORT is
+     * supported (Linux) each loop gets its own listener and the kernel spreads
+     * incoming connections across them, otherwise they all share one listener.
+     */
     @SneakyThrows
     public void start() {
-        try (
-            ServerSocket serverSocket = new ServerSocket()) {
-            serverSocket.setReuseAddress(true);
-            serverSocket.bind(new InetSocketAddress("::", SeatOfPants.config.port));
-
-            while (serverSocket.isBound()) {
-                Socket socket = serverSocket.accept();
-                Thread.ofPlatform().start(() -> {
-                    // Don't block the socket loop.
-                    SeatOfPants.handle(socket);
-                });
+        int acceptorCount = Math.max(1, SeatOfPants.config.acceptorThreads);
+        boolean useReusePort = acceptorCount > 1 && supportsReusePort();
+
+        List<ServerSocketChannel> listeners = new LinkedList<>();
+        try {
+            ServerSocketChannel shared = useReusePort ? null : this.listen(false);
+            if (shared != null) listeners.add(shared);
+
+            List<Thread> acceptors = new LinkedList<>();
+            for (int i = 0; i < acceptorCount; i++) {
+                ServerSocketChannel listener = shared;
+                if (listener == null) {
+                    listener = this.listen(true);
+                    listeners.add(listener);
+                }
+
+                ServerSocketChannel $listener_ptr = listener;
+                acceptors.add(
+                    Thread
+                        .ofPlatform()
+                        .name("Acceptor #" + i)
+                        .start(() -> this.acceptLoop($listener_ptr, useReusePort))
+                );
+            }
+
+            SeatOfPants.LOGGER.debug("Started %d acceptor(s)%s.", acceptorCount, useReusePort ? " with SO_REUSEPORT" : "");
+
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
+        } finally {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
             }
         }
     }
 
+    private ServerSocketChannel listen(boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (SeatOfPants.config.acceptReceiveBufferSize > 0) {
+            // Inherited by the accepted sockets, needs to be set before binding to affect the TCP window.
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, SeatOfPants.config.acceptReceiveBufferSize);
+        }
+
+        serverChannel.bind(new InetSocketAddress("::", SeatOfPants.config.port), SeatOfPants.config.acceptBacklog);
+        return serverChannel;
+    }
+
+    /**
+     * @param ownsListener whether nobody else accepts on the listener, in which
+     *                     case it gets closed if we stop. Otherwise (with
+     *                     SO_REUSEPORT) the kernel would keep handing it
+     *                     connections that nobody accepts.
+     */
+    private void acceptLoop(ServerSocketChannel serverChannel, boolean ownsListener) {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    // Usually transient, e.g we're out of file descriptors (EMFILE/ENFILE).
+                    SeatOfPants.LOGGER.warn("Unable to accept a connection, retrying shortly: %s", e);
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(ACCEPT_RETRY_DELAY_MS);
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                    continue;
+                }
+
+                this.dispatch(channel);
+            }
+        } finally {
+            if (ownsListener) {
+                try {
+                    serverChannel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private void dispatch(SocketChannel channel) {
+        try {
+            if (SeatOfPants.config.clientTcpNoDelay) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+        } catch (IOException ignored) {}
+
+        SeatOfPants.connectionThread().start(() -> {
+            // Don't block the socket loop.
+            SeatOfPants.handle(channel);
+        });
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
 }
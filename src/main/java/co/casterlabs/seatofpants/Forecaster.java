@@ -0,0 +1,163 @@
+package co.casterlabs.seatofpants;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.casterlabs.rakurai.json.element.JsonObject;
+import co.casterlabs.seatofpants.config.Config;
+
+/**
+ * Forecasts demand for {@link Config.ScalingBehavior#PREDICTIVE}. Arrivals are
+ * bucketed into windows and fed into Holt's linear smoothing (a level and a
+ * trend), session durations get a plain EWMA.
+ */
+public class Forecaster {
+    private final LongAdder windowArrivals = new LongAdder();
+    private volatile long windowEndsAt = -1;
+
+    // Arrivals per second.
+    private double level = -1;
+    private double trend = 0;
+    private double lastActualRate = 0;
+    private double lastForecastRate = 0;
+    private double meanAbsoluteError = 0;
+    private long windows = 0;
+
+    private volatile double sessionDurationMs = -1;
+
+    public void recordArrival() {
+        this.windowArrivals.increment();
+        this.roll();
+    }
+
+    public void recordSessionDuration(long durationMs) {
+        double alpha = SeatOfPants.config.forecastDurationSmoothing;
+        synchronized (this) {
+            this.sessionDurationMs = this.sessionDurationMs < 0 ? //
+                durationMs : //
+                alpha * durationMs + (1 - alpha) * this.sessionDurationMs;
+        }
+    }
+
+    /**
+     * Closes any windows that have ended, windows without arrivals count as a
+     * rate of zero.
+     */
+    private void roll() {
+        long now = System.currentTimeMillis();
+        if (now < this.windowEndsAt) return;
+
+        synchronized (this) {
+            long windowMs = this.windowMs();
+            if (this.windowEndsAt == -1) {
+                this.windowEndsAt = now + windowMs;
+                return;
+            }
+
+            double alpha = SeatOfPants.config.forecastLevelSmoothing;
+            double beta = SeatOfPants.config.forecastTrendSmoothing;
+
+            while (now >= this.windowEndsAt) {
+                double actual = this.windowArrivals.sumThenReset() / (windowMs / 1000d);
+
+                if (this.level < 0) {
+                    this.level = actual;
+                } else {
+                    // Score the one-step forecast we made for this window before folding it in.
+                    double forecast = Math.max(0, this.level + this.trend);
+                    this.lastForecastRate = forecast;
+                    this.meanAbsoluteError = alpha * Math.abs(actual - forecast) + (1 - alpha) * this.meanAbsoluteError;
+
+                    double previousLevel = this.level;
+                    this.level = alpha * actual + (1 - alpha) * (this.level + this.trend);
+                    this.trend = beta * (this.level - previousLevel) + (1 - beta) * this.trend;
+                }
+
+                this.lastActualRate = actual;
+                this.windows++;
+                this.windowEndsAt += windowMs;
+            }
+        }
+    }
+
+    /**
+     * @return the highest forecasted arrival rate (per second) between now and
+     *         the horizon. The trend is linear so that's one of the two ends.
+     */
+    public synchronized double peakRate(long horizonMs) {
+        this.roll();
+        if (this.level < 0) return 0;
+
+        double steps = horizonMs / (double) this.windowMs();
+        return Math.max(0, Math.max(this.level, this.level + this.trend * steps));
+    }
+
+    /**
+     * @return how many connections we expect to have open at the horizon, by
+     *         Little's law (arrival rate * session duration). Until we've seen a
+     *         session end we assume everything that arrives stays until the
+     *         horizon.
+     */
+    public long expectedConnections(long horizonMs) {
+        double durationMs = this.sessionDurationMs < 0 ? horizonMs : this.sessionDurationMs;
+        return (long) Math.ceil(this.peakRate(horizonMs) * durationMs / 1000d);
+    }
+
+    /**
+     * @return how far ahead we need to look, which is how long it takes to get a
+     *         new instance going.
+     */
+    public static long horizonMs() {
+        long latencyMs = SeatOfPants.creations.latencyPercentile(.9);
+        if (latencyMs < 0) {
+            return TimeUnit.SECONDS.toMillis(SeatOfPants.config.providerMaxCreationTimeSeconds); // Nothing measured yet.
+        }
+        return latencyMs + SeatOfPants.config.scalerDebounceMilliseconds;
+    }
+
+    private long windowMs() {
+        return TimeUnit.SECONDS.toMillis(Math.max(1, SeatOfPants.config.forecastWindowSeconds));
+    }
+
+    public void renderMetrics(StringBuilder sb) {
+        long horizonMs = horizonMs();
+        double peakRate = this.peakRate(horizonMs);
+
+        synchronized (this) {
+            Metrics.header(sb, "sop_forecast_arrival_rate", "gauge", "Connections arriving per second, by forecasted vs actual for the last window, and the forecasted peak within the horizon.");
+            Metrics.sample(sb, "sop_forecast_arrival_rate", "kind=\"actual\"", this.lastActualRate);
+            Metrics.sample(sb, "sop_forecast_arrival_rate", "kind=\"forecast\"", this.lastForecastRate);
+            Metrics.sample(sb, "sop_forecast_arrival_rate", "kind=\"horizon_peak\"", peakRate);
+
+            Metrics.header(sb, "sop_forecast_session_duration_milliseconds", "gauge", "Smoothed session duration.");
+            Metrics.sample(sb, "sop_forecast_session_duration_milliseconds", null, Math.max(0, this.sessionDurationMs));
+        }
+
+        Metrics.header(sb, "sop_forecast_connections", "gauge", "Connections, by forecasted at the horizon vs actual now.");
+        Metrics.sample(sb, "sop_forecast_connections", "kind=\"actual\"", SeatOfPants.getConnectionCount());
+        Metrics.sample(sb, "sop_forecast_connections", "kind=\"forecast\"", this.expectedConnections(horizonMs));
+    }
+
+    public JsonObject toJson() {
+        long horizonMs = horizonMs();
+        double peakRate = this.peakRate(horizonMs);
+
+        JsonObject json = new JsonObject();
+        json.put("windowSeconds", SeatOfPants.config.forecastWindowSeconds);
+        json.put("horizonMs", horizonMs);
+        synchronized (this) {
+            json.put("windows", this.windows);
+            json.put("level", Math.max(0, this.level));
+            json.put("trend", this.trend);
+            json.put("forecastRate", this.lastForecastRate);
+            json.put("actualRate", this.lastActualRate);
+            json.put("meanAbsoluteError", this.meanAbsoluteError);
+            json.put("sessionDurationMs", this.sessionDurationMs);
+        }
+        json.put("horizonPeakRate", peakRate);
+        json.put("forecastConnections", this.expectedConnections(horizonMs));
+        json.put("actualConnections", SeatOfPants.getConnectionCount());
+        return json;
+    }
+
+}
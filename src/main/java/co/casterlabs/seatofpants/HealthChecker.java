@@ -0,0 +1,76 @@
+package co.casterlabs.seatofpants;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import co.casterlabs.seatofpants.providers.Instance;
+import lombok.NonNull;
+
+/**
+ * Refreshes the health of every instance in the background, so that
+ * {@link Instance#isAlive()} never has to block. Checks are spread out with
+ * jitter and only a bounded amount run at once, a slow provider can't stall
+ * anything but other health checks.
+ */
+public class HealthChecker {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform()
+            .name("Health check scheduler")
+            .daemon(true)
+            .factory()
+    );
+
+    private final Semaphore concurrency = new Semaphore(Math.max(1, SeatOfPants.config.healthCheckConcurrency));
+
+    /**
+     * Starts checking the instance periodically. Checking stops by itself once
+     * the instance is dead or has been closed.
+     */
+    public void watch(@NonNull Instance instance) {
+        // Spread the first check over a whole interval so that instances created
+        // together don't all get checked together.
+        long intervalMs = TimeUnit.SECONDS.toMillis(SeatOfPants.config.healthCheckIntervalSeconds);
+        this.schedule(instance, ThreadLocalRandom.current().nextLong(Math.max(1, intervalMs)));
+    }
+
+    private void schedule(Instance instance, long delayMs) {
+        this.scheduler.schedule(
+            () -> Thread
+                .ofVirtual()
+                .name("Health check " + instance.id)
+                .start(() -> this.check(instance)),
+            delayMs,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void check(Instance instance) {
+        if (!instance.isAlive()) return;
+
+        try {
+            this.concurrency.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        try {
+            instance.refreshHealth();
+        } finally {
+            this.concurrency.release();
+        }
+
+        if (instance.isAlive()) {
+            long intervalMs = TimeUnit.SECONDS.toMillis(SeatOfPants.config.healthCheckIntervalSeconds);
+            long jitterMs = (long) (intervalMs * ThreadLocalRandom.current().nextDouble(-.1, .1));
+            this.schedule(instance, intervalMs + jitterMs);
+        } else {
+            instance.logger.info("Instance failed its health check.");
+            SeatOfPants.placement.remove(instance);
+            SeatOfPants.scaler.trigger(Scaler.Trigger.INSTANCE_DIED); // Prune and replace it.
+        }
+    }
+
+}
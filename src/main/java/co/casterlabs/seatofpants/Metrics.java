@@ -0,0 +1,217 @@
+package co.casterlabs.seatofpants;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.casterlabs.seatofpants.config.Config;
+import co.casterlabs.seatofpants.providers.Instance;
+import co.casterlabs.seatofpants.relay.BufferPool;
+
+/**
+ * Counters for the whole node, rendered in the Prometheus text format. All hot
+ * path counters are {@link LongAdder}s so that increments stay cheap under
+ * contention.
+ */
+public class Metrics {
+    public static final InstanceCounters totals = new InstanceCounters(null);
+
+    public static final LongAdder instancesCreated = new LongAdder();
+    public static final LongAdder instanceCreationFailures = new LongAdder();
+    public static final LongAdder redirects = new LongAdder();
+    private static final Map<DestroyReason, LongAdder> instancesDestroyed = new EnumMap<>(DestroyReason.class);
+
+    static {
+        for (DestroyReason reason : DestroyReason.values()) {
+            instancesDestroyed.put(reason, new LongAdder());
+        }
+    }
+
+    public static void recordDestroyed(DestroyReason reason) {
+        instancesDestroyed.get(reason).increment();
+    }
+
+    public static String render(Collection<Instance> instances, long warmCapacity, long hotCapacity, int inFlightCreations) {
+        StringBuilder sb = new StringBuilder();
+
+        // Totals
+        header(sb, "sop_bytes_proxied_total", "counter", "Bytes relayed, by direction.");
+        sample(sb, "sop_bytes_proxied_total", "direction=\"client_to_instance\"", totals.bytesClientToInstance.sum());
+        sample(sb, "sop_bytes_proxied_total", "direction=\"instance_to_client\"", totals.bytesInstanceToClient.sum());
+
+        header(sb, "sop_connections_accepted_total", "counter", "Connections adopted by an instance.");
+        sample(sb, "sop_connections_accepted_total", null, totals.connectionsAccepted.sum());
+
+        header(sb, "sop_connections_closed_total", "counter", "Connections that have been closed.");
+        sample(sb, "sop_connections_closed_total", null, totals.connectionsClosed.sum());
+
+        header(sb, "sop_connect_retries_total", "counter", "Failed attempts at connecting to an instance.");
+        sample(sb, "sop_connect_retries_total", null, totals.connectRetries.sum());
+
+        header(sb, "sop_instances_created_total", "counter", "Instances created.");
+        sample(sb, "sop_instances_created_total", null, instancesCreated.sum());
+
+        header(sb, "sop_instance_creation_failures_total", "counter", "Instance creations that failed.");
+        sample(sb, "sop_instance_creation_failures_total", null, instanceCreationFailures.sum());
+
+        header(sb, "sop_redirects_total", "counter", "Clients sent to their instance directly instead of being relayed.");
+        sample(sb, "sop_redirects_total", null, redirects.sum());
+
+        header(sb, "sop_instances_destroyed_total", "counter", "Instances destroyed, by reason.");
+        for (Map.Entry<DestroyReason, LongAdder> entry : instancesDestroyed.entrySet()) {
+            sample(sb, "sop_instances_destroyed_total", "reason=\"" + entry.getKey().name().toLowerCase() + "\"", entry.getValue().sum());
+        }
+
+        // Gauges
+        header(sb, "sop_instances", "gauge", "Instances currently known to SOP.");
+        sample(sb, "sop_instances", null, instances.size());
+
+        header(sb, "sop_warm_capacity", "gauge", "Free connection slots on placeable instances.");
+        sample(sb, "sop_warm_capacity", null, warmCapacity);
+
+        header(sb, "sop_warm_capacity_by_state", "gauge", "Free connection slots, split by whether the instance is frozen.");
+        sample(sb, "sop_warm_capacity_by_state", "state=\"hot\"", hotCapacity);
+        sample(sb, "sop_warm_capacity_by_state", "state=\"frozen\"", Math.max(0, warmCapacity - hotCapacity));
+
+        header(sb, "sop_instances_frozen", "gauge", "Instances currently frozen.");
+        sample(sb, "sop_instances_frozen", null, instances.stream().filter(Instance::isFrozen).count());
+
+        header(sb, "sop_inflight_creations", "gauge", "Instances currently being created.");
+        sample(sb, "sop_inflight_creations", null, inFlightCreations);
+
+        SeatOfPants.creations.renderMetrics(sb);
+        SeatOfPants.scaler.renderMetrics(sb);
+        if (SeatOfPants.config.scalingBehavior == Config.ScalingBehavior.PREDICTIVE) {
+            SeatOfPants.forecaster.renderMetrics(sb);
+        }
+
+        header(sb, "sop_admission_queue_depth", "gauge", "Clients waiting for capacity.");
+        sample(sb, "sop_admission_queue_depth", null, SeatOfPants.admission.depth());
+
+        header(sb, "sop_relay_buffers_in_use", "gauge", "Pooled relay buffers currently checked out.");
+        sample(sb, "sop_relay_buffers_in_use", null, BufferPool.get().buffersInUse());
+
+        header(sb, "sop_relay_buffer_overflows_total", "counter", "Relay buffers allocated on the heap because the direct buffer cap was reached.");
+        sample(sb, "sop_relay_buffer_overflows_total", null, BufferPool.get().overflows());
+
+        header(sb, "sop_relay_bytes_in_flight", "gauge", "Bytes read from one side but not yet written to the other.");
+        sample(sb, "sop_relay_bytes_in_flight", null, BufferPool.get().bytesInFlight());
+
+        // Per-instance
+        header(sb, "sop_instance_connections", "gauge", "Connections currently on the instance.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_connections", instanceLabel(i), i.connectionsCount());
+        }
+
+        header(sb, "sop_instance_leases", "gauge", "Slots held for redirected clients, these count towards the instance's connections.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_leases", instanceLabel(i), i.leasesCount());
+        }
+
+        header(sb, "sop_instance_readiness_milliseconds", "gauge", "How long the instance took to pass its readiness probe.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_readiness_milliseconds", instanceLabel(i), i.readinessLatency());
+        }
+
+        header(sb, "sop_instance_bytes_proxied_total", "counter", "Bytes relayed for the instance, by direction.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_bytes_proxied_total", instanceLabel(i) + ",direction=\"client_to_instance\"", i.counters.bytesClientToInstance.sum());
+            sample(sb, "sop_instance_bytes_proxied_total", instanceLabel(i) + ",direction=\"instance_to_client\"", i.counters.bytesInstanceToClient.sum());
+        }
+
+        header(sb, "sop_instance_connections_accepted_total", "counter", "Connections adopted by the instance.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_connections_accepted_total", instanceLabel(i), i.counters.connectionsAccepted.sum());
+        }
+
+        header(sb, "sop_instance_connections_closed_total", "counter", "Connections to the instance that have been closed.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_connections_closed_total", instanceLabel(i), i.counters.connectionsClosed.sum());
+        }
+
+        header(sb, "sop_instance_connect_retries_total", "counter", "Failed attempts at connecting to the instance.");
+        for (Instance i : instances) {
+            sample(sb, "sop_instance_connect_retries_total", instanceLabel(i), i.counters.connectRetries.sum());
+        }
+
+        SeatOfPants.provider.renderMetrics(sb);
+
+        return sb.toString();
+    }
+
+    private static String instanceLabel(Instance instance) {
+        return "instance=\"" + instance.id + "\"";
+    }
+
+    public static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    public static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    public static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    public static enum DestroyReason {
+        EXPIRED,
+        UNUSED,
+        DEAD,
+        ;
+    }
+
+    /**
+     * Per-instance counters. Every increment is mirrored into {@link #totals} so
+     * that the node-wide numbers survive instances going away.
+     */
+    public static class InstanceCounters {
+        private final InstanceCounters parent;
+
+        public final LongAdder bytesClientToInstance = new LongAdder();
+        public final LongAdder bytesInstanceToClient = new LongAdder();
+        public final LongAdder connectionsAccepted = new LongAdder();
+        public final LongAdder connectionsClosed = new LongAdder();
+        public final LongAdder connectRetries = new LongAdder();
+
+        public InstanceCounters() {
+            this(totals);
+        }
+
+        private InstanceCounters(InstanceCounters parent) {
+            this.parent = parent;
+        }
+
+        public void addBytes(boolean clientToInstance, long bytes) {
+            (clientToInstance ? this.bytesClientToInstance : this.bytesInstanceToClient).add(bytes);
+            if (this.parent != null) this.parent.addBytes(clientToInstance, bytes);
+        }
+
+        public void connectionAccepted() {
+            this.connectionsAccepted.increment();
+            if (this.parent != null) this.parent.connectionAccepted();
+        }
+
+        public void connectionClosed() {
+            this.connectionsClosed.increment();
+            if (this.parent != null) this.parent.connectionClosed();
+        }
+
+        public void connectRetried() {
+            this.connectRetries.increment();
+            if (this.parent != null) this.parent.connectRetried();
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package co.casterlabs.seatofpants;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.seatofpants.providers.Instance;
+import lombok.NonNull;
+
+/**
+ * Keeps every placeable instance ordered by how many connections it has, so
+ * that picking one for a new connection doesn't need a lock or a sort.
+ */
+public class PlacementIndex {
+    private static final Comparator<Slot> ORDER = Comparator
+        .comparingInt(Slot::connections) // Instances with the least connections
+        .thenComparing(Comparator.comparingLong(Slot::createdAt).reversed()) // Prefer newer instances.
+        .thenComparing((s) -> s.instance().id);
+
+    private final ConcurrentSkipListSet<Slot> slots = new ConcurrentSkipListSet<>(ORDER);
+    private final Map<String, Slot> current = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the instance or re-sorts it after its connection count has changed.
+     * Instances that are no longer alive get dropped instead.
+     */
+    public void update(@NonNull Instance instance) {
+        this.current.compute(instance.id, (id, old) -> {
+            if (old != null) {
+                this.slots.remove(old);
+            }
+
+            // Checked under the compute() so that it can't race with remove().
+            if (!instance.isAlive()) return null;
+
+            Slot slot = new Slot(instance, instance.connectionsCount(), instance.createdAt());
+            this.slots.add(slot);
+            return slot;
+        });
+    }
+
+    public void remove(@NonNull Instance instance) {
+        this.current.computeIfPresent(instance.id, (id, old) -> {
+            this.slots.remove(old);
+            return null;
+        });
+    }
+
+    /**
+     * Finds the best instance and reserves a connection slot on it.
+     *
+     * @return null if no instance currently has capacity.
+     */
+    public @Nullable Instance reserve() {
+        for (Slot slot : this.slots) {
+            if (slot.connections() >= SeatOfPants.config.maxConnectionsPerInstance) {
+                break; // Everything after this is just as full (or fuller).
+            }
+
+            Instance instance = slot.instance();
+            if (!instance.isAlive()) {
+                // Don't make every reservation step over it until the health checker gets around to it.
+                this.remove(instance);
+                continue;
+            }
+            if (instance.isExpired() || instance.isAboutToExpire() || instance.isOverloaded()) {
+                continue;
+            }
+
+            if (instance.tryReserve()) {
+                return instance;
+            }
+            // Someone else beat us to the last slot, keep looking.
+        }
+        return null;
+    }
+
+    private static record Slot(Instance instance, int connections, long createdAt) {
+    }
+
+}
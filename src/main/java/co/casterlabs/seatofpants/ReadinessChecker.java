@@ -0,0 +1,105 @@
+package co.casterlabs.seatofpants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import co.casterlabs.seatofpants.config.Config;
+import co.casterlabs.seatofpants.providers.Instance;
+import co.casterlabs.seatofpants.util.Watchdog;
+import lombok.NonNull;
+
+/**
+ * Probes a freshly created instance until it's ready to accept connections.
+ */
+public class ReadinessChecker {
+
+    /**
+     * Blocks until the instance passes the configured probe, or just sleeps for
+     * {@link Config#providerInstanceWaitTimeSeconds} if there isn't one.
+     *
+     * @param deadline the time (in epoch millis) to give up at.
+     */
+    public static void awaitReady(@NonNull Instance instance, long deadline) throws IOException, InterruptedException {
+        Config.ReadinessProbe probe = SeatOfPants.config.readinessProbe;
+        long start = System.currentTimeMillis();
+
+        if (probe.type == Config.ReadinessProbe.Type.NONE) {
+            if (SeatOfPants.config.providerInstanceWaitTimeSeconds > 0) {
+                Thread.sleep(SeatOfPants.config.providerInstanceWaitTimeSeconds * 1000);
+            }
+        } else {
+            int attempts = 0;
+            while (!check(instance, probe)) {
+                attempts++;
+                if (System.currentTimeMillis() + probe.intervalMilliseconds >= deadline) {
+                    throw new IOException(String.format("Instance did not pass the %s readiness probe after %d attempts.", probe.type, attempts));
+                }
+                Thread.sleep(probe.intervalMilliseconds);
+            }
+        }
+
+        long took = System.currentTimeMillis() - start;
+        instance.setReadinessLatency(took);
+        instance.logger.debug("Ready after %dms.", took);
+    }
+
+    private static boolean check(Instance instance, Config.ReadinessProbe probe) {
+        try (Watchdog wd = new Watchdog(probe.timeoutMilliseconds, "Readiness probe");
+            SocketChannel channel = SocketChannel.open(instance.getSocketAddress())) {
+            switch (probe.type) {
+                case TCP:
+                    return true; // Connecting is all we need.
+
+                case HTTP: {
+                    String request = String.format(
+                        "GET %s HTTP/1.1\r\nHost: %s\r\nUser-Agent: SeatOfPants\r\nConnection: close\r\n\r\n",
+                        probe.httpPath, instance.getSocketAddress() instanceof InetSocketAddress ? instance.getAddress() : "localhost"
+                    );
+                    write(channel, request);
+
+                    // "HTTP/1.1 200 OK"
+                    String statusLine = readAtLeast(channel, "HTTP/1.1 000".length());
+                    String[] parts = statusLine.split(" ", 3);
+                    return parts.length >= 2 && parts[1].equals(String.valueOf(probe.httpExpectedStatus));
+                }
+
+                case SCRIPT: {
+                    if (probe.scriptSend != null) {
+                        write(channel, probe.scriptSend);
+                    }
+                    if (probe.scriptExpect == null) {
+                        return true;
+                    }
+                    return readAtLeast(channel, probe.scriptExpect.getBytes(StandardCharsets.UTF_8).length).startsWith(probe.scriptExpect);
+                }
+
+                default:
+                    return true;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            Thread.interrupted(); // Clear.
+        }
+    }
+
+    private static void write(SocketChannel channel, String str) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readAtLeast(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(length, 256));
+        while (buffer.position() < length) {
+            if (channel.read(buffer) == -1) break;
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+}
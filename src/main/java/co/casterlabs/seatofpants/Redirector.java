@@ -0,0 +1,99 @@
+package co.casterlabs.seatofpants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import co.casterlabs.seatofpants.config.Config;
+import co.casterlabs.seatofpants.providers.Instance;
+import co.casterlabs.seatofpants.util.Watchdog;
+import lombok.NonNull;
+
+/**
+ * Points a client at its instance instead of relaying it, see
+ * {@link Config.ListenerMode}. The client's slot is held as a lease so that
+ * scaling still sees it.
+ */
+public class Redirector {
+    private static final int MAX_REQUEST_HEAD_SIZE = 8 * 1024;
+    private static final long REQUEST_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Answers the client and closes it. The slot must have already been claimed
+     * with {@link Instance#tryReserve()}, it's only handed over to a lease if
+     * this returns true. Otherwise it's still the caller's to use or give back.
+     *
+     * @return false if the client has no way of reaching the instance (e.g it
+     *         listens on a unix socket), the caller should relay instead.
+     */
+    public static boolean redirect(@NonNull SocketChannel client, @NonNull Instance instance) throws IOException {
+        if (!(instance.getSocketAddress() instanceof InetSocketAddress)) {
+            return false;
+        }
+
+        try (Watchdog wd = new Watchdog(REQUEST_TIMEOUT_MS, "Redirect")) {
+            String response;
+            switch (SeatOfPants.config.listenerMode) {
+                case HTTP_REDIRECT: {
+                    String path = readRequestPath(client);
+                    response = String.format(
+                        "HTTP/1.1 307 Temporary Redirect\r\nLocation: %s://%s%s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+                        SeatOfPants.config.redirectScheme, instance.getAddress(), path
+                    );
+                    break;
+                }
+
+                case HANDSHAKE:
+                default:
+                    response = instance.getAddress() + "\n";
+                    break;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                client.write(buffer);
+            }
+            client.close();
+        } finally {
+            Thread.interrupted(); // Clear.
+        }
+
+        // Nothing past this point may throw, the slot now belongs to the lease.
+        Metrics.redirects.increment();
+        instance.lease(TimeUnit.SECONDS.toMillis(SeatOfPants.config.redirectLeaseSeconds));
+        return true;
+    }
+
+    /**
+     * @return the path from the request line, e.g "/foo?bar" from "GET /foo?bar
+     *         HTTP/1.1".
+     */
+    private static String readRequestPath(SocketChannel client) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_HEAD_SIZE);
+        while (true) {
+            if (client.read(buffer) == -1) {
+                throw new IOException("Client hung up before sending a request.");
+            }
+
+            // We only need the request line, the rest of the head is ignored.
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    String requestLine = new String(buffer.array(), 0, i, StandardCharsets.UTF_8).trim();
+                    String[] parts = requestLine.split(" ");
+                    if (parts.length < 2 || !parts[1].startsWith("/")) {
+                        throw new IOException("Malformed request line: " + requestLine);
+                    }
+                    return parts[1];
+                }
+            }
+
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Request line is too long.");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package co.casterlabs.seatofpants;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.NonNull;
+
+/**
+ * Runs {@link SeatOfPants#tick()} whenever something that affects capacity
+ * happens. Bursts of events are debounced into a single pass, and a slow
+ * periodic pass reconciles anything that slipped through.
+ */
+public class Scaler {
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private final Map<Trigger, LongAdder> triggers = new EnumMap<>(Trigger.class);
+    private final LongAdder passes = new LongAdder();
+
+    private volatile Thread thread;
+
+    {
+        for (Trigger trigger : Trigger.values()) {
+            this.triggers.put(trigger, new LongAdder());
+        }
+    }
+
+    public synchronized void start() {
+        if (this.thread != null) return;
+
+        this.thread = Thread
+            .ofPlatform()
+            .name("Scaler")
+            .priority(Thread.MAX_PRIORITY)
+            .daemon(true)
+            .start(this::run);
+    }
+
+    /**
+     * Schedules a scaling pass, this never blocks.
+     */
+    public void trigger(@NonNull Trigger trigger) {
+        this.triggers.get(trigger).increment();
+        if (this.pending.compareAndSet(false, true)) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+
+    private void run() {
+        long nextReconcileAt = System.currentTimeMillis() + this.reconcileIntervalMs();
+
+        while (true) {
+            if (!this.pending.get()) {
+                long waitMs = nextReconcileAt - System.currentTimeMillis();
+                if (waitMs > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMs));
+                    continue; // Either we got triggered or it's time to reconcile, check again.
+                }
+
+                this.triggers.get(Trigger.RECONCILE).increment();
+            } else if (SeatOfPants.config.scalerDebounceMilliseconds > 0) {
+                // Give the rest of the burst a moment to arrive, sleep() isn't cut short by unpark().
+                try {
+                    TimeUnit.MILLISECONDS.sleep(SeatOfPants.config.scalerDebounceMilliseconds);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            // Anything that happens from here on out gets its own pass.
+            this.pending.set(false);
+
+            try {
+                SeatOfPants.tick();
+            } catch (Throwable t) {
+                SeatOfPants.LOGGER.severe("Error whilst scaling:\n%s", t);
+            }
+
+            this.passes.increment();
+            nextReconcileAt = System.currentTimeMillis() + this.reconcileIntervalMs();
+        }
+    }
+
+    private long reconcileIntervalMs() {
+        return TimeUnit.SECONDS.toMillis(Math.max(1, SeatOfPants.config.scalerReconcileIntervalSeconds));
+    }
+
+    public void renderMetrics(StringBuilder sb) {
+        Metrics.header(sb, "sop_scaler_triggers_total", "counter", "Events that asked for a scaling pass, by trigger.");
+        for (Map.Entry<Trigger, LongAdder> entry : this.triggers.entrySet()) {
+            Metrics.sample(sb, "sop_scaler_triggers_total", "trigger=\"" + entry.getKey().name().toLowerCase() + "\"", entry.getValue().sum());
+        }
+
+        Metrics.header(sb, "sop_scaler_passes_total", "counter", "Scaling passes run, a burst of triggers only runs one.");
+        Metrics.sample(sb, "sop_scaler_passes_total", null, this.passes.sum());
+    }
+
+    public static enum Trigger {
+        CONNECTION_ADOPTED,
+        CONNECTION_CLOSED,
+        INSTANCE_DIED,
+        INSTANCE_READY,
+        CREATION_FAILED,
+        CONFIG_CHANGED,
+        RECONCILE,
+        ;
+    }
+
+}
@@ -2,24 +2,28 @@ package co.casterlabs.seatofpants;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+import co.casterlabs.rakurai.json.element.JsonObject;
 import co.casterlabs.seatofpants.config.Config;
 import co.casterlabs.seatofpants.providers.Instance;
 import co.casterlabs.seatofpants.providers.InstanceCreationException;
 import co.casterlabs.seatofpants.providers.InstanceProvider;
+import co.casterlabs.seatofpants.providers.ResourceUsage;
+import co.casterlabs.seatofpants.relay.NioRelay;
+import co.casterlabs.seatofpants.relay.Relay;
+import co.casterlabs.seatofpants.relay.ThreadedRelay;
 import co.casterlabs.seatofpants.util.Watchdog;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 
@@ -32,13 +36,21 @@ public class SeatOfPants {
     public static APIDaemon apiDaemon;
     public static Heartbeat heartbeat;
     public static InstanceProvider provider;
+    public static HealthChecker healthChecker;
 
-    private static Map<String, Instance> instances = new HashMap<>();
+    private static Map<String, Instance> instances = new ConcurrentHashMap<>();
+    public static final PlacementIndex placement = new PlacementIndex();
     public static final Set<Runnable> runOnClose = Collections.synchronizedSet(new HashSet<>());
 
-    private static final ReentrantLock searchLock = new ReentrantLock();
+    private static final ReentrantLock connectionRateLock = new ReentrantLock();
     private static final ReentrantLock tickLock = new ReentrantLock();
-    private static final Object notifications = new Object();
+    public static final AdmissionQueue admission = new AdmissionQueue();
+    public static final CreationExecutor creations = new CreationExecutor();
+    public static final Scaler scaler = new Scaler();
+    public static final Forecaster forecaster = new Forecaster();
+
+    private static final Relay threadedRelay = new ThreadedRelay();
+    private static volatile NioRelay nioRelay; // Lazily started, the thread count can't be changed while running.
 
     private static boolean isShuttingDown = false;
 
@@ -58,120 +70,268 @@ public class SeatOfPants {
                 } catch (Throwable ignored) {}
             }
         }));
-        Thread
-            .ofPlatform()
-            .name("Background tick() thread.")
-            .priority(Thread.MAX_PRIORITY)
-            .start(() -> {
-                while (!isShuttingDown) {
-                    try {
-                        TimeUnit.SECONDS.sleep(15);
-                    } catch (InterruptedException ignored) {}
-                    tick();
-                }
-            });
     }
 
-    public static void handle(Socket socket) {
+    public static void handle(SocketChannel channel) {
+        Socket socket = channel.socket();
+        Instance instance = null;
+        boolean handedOff = false; // Once the slot belongs to a lease or a relay session, it's no longer ours to give back.
         try {
-            LOGGER.info("Incoming connection: #%d %s", socket.hashCode(), socket.getRemoteSocketAddress());
+            LOGGER.info("Incoming connection: #%d %s", channel.hashCode(), socket.getRemoteSocketAddress());
+            forecaster.recordArrival();
+
+            // Wait in line for an instance that has capacity, this also reserves our slot.
+            instance = admission.admit();
+            if (instance == null) {
+                LOGGER.info("Rejected connection, the admission queue is full or no instance became available in time: #%d %s", channel.hashCode(), socket.getRemoteSocketAddress());
+                channel.close();
+                return;
+            }
 
-            while (true) {
-                searchLock.lock();
+            if (config.listenerMode != Config.ListenerMode.PROXY) {
                 try {
-                    LOGGER.info("Processing connection: #%d %s", socket.hashCode(), socket.getRemoteSocketAddress());
-
-                    // Look for an existing instance that has capacity.
-                    Optional<Instance> potentialInstance = new ArrayList<>(instances.values())
-                        .parallelStream()
-                        .filter((i) -> !i.isExpired())
-                        .filter((i) -> !i.isAboutToExpire())
-                        .filter((i) -> i.hasCapacity())
-                        .filter((i) -> i.isAlive())
-                        .sorted((i1, i2) -> Long.compare(i1.age(), i2.age()) * -1) // Prefer newer instances.
-                        .sorted((i1, i2) -> Long.compare(i1.connectionsCount(), i2.connectionsCount())) // Instances with the least connections
-                        .findFirst();
-
-                    if (potentialInstance.isPresent()) {
-                        Instance instance = potentialInstance.get();
-                        LOGGER.info("Using instance for request: %s", instance.id);
-                        instance.adopt(socket);
-//                        Thread.ofVirtual().start(SeatOfPants::tick); // Tick asynchronously.
-
-                        if (SeatOfPants.config.instanceConnectionRateMilliseconds > 0) {
-                            try {
-                                // Limit subsequent connections (via the lock)
-                                TimeUnit.MILLISECONDS.sleep(SeatOfPants.config.instanceConnectionRateMilliseconds);
-                            } catch (InterruptedException ignored) {}
-                        }
-                        return; // DO NOT execute the below logic.
+                    if (Redirector.redirect(channel, instance)) {
+                        handedOff = true;
+                        LOGGER.info("Redirected connection to %s: #%d %s", instance.id, channel.hashCode(), socket.getRemoteSocketAddress());
+                        return;
                     }
-                } finally {
-                    searchLock.unlock();
+                } catch (IOException e) {
+                    LOGGER.info("Unable to redirect connection, closing it: #%d %s (%s)", channel.hashCode(), socket.getRemoteSocketAddress(), e);
+                    channel.close();
+                    return;
                 }
+                // Not directly reachable, fall back to relaying.
+            }
 
-                // There was no instance ready...
+            // Only serialize adoption when we need to limit the connection rate.
+            boolean isRateLimited = config.instanceConnectionRateMilliseconds > 0;
+            if (isRateLimited) {
+                connectionRateLock.lock();
+            }
+            try {
+                LOGGER.info("Using instance for request: %s", instance.id);
+                handedOff = true;
+                instance.adopt(channel);
+//                Thread.ofVirtual().start(SeatOfPants::tick); // Tick asynchronously.
 
-                // Wait for another creation call to complete and then Repeat.
-                LOGGER.debug("Waiting for an existing instance creation operation to complete (or for another instance to have availability).");
-                try (Watchdog wd = new Watchdog(config.providerMaxCreationTimeSeconds * 2 * 1000, "Instance creation wait")) {
-                    synchronized (notifications) {
-                        notifications.wait();
-                    }
-                } finally {
-                    Thread.interrupted(); // Clear.
-                    // This bails out of the loop if the watchdog times out.
+                if (isRateLimited) {
+                    try {
+                        // Limit subsequent connections (via the lock)
+                        TimeUnit.MILLISECONDS.sleep(config.instanceConnectionRateMilliseconds);
+                    } catch (InterruptedException ignored) {}
+                }
+            } finally {
+                if (isRateLimited) {
+                    connectionRateLock.unlock();
                 }
-
-                // Repeat.
             }
         } catch (Throwable t) {
-            LOGGER.info("Closed connection: #%d %s", socket.hashCode(), socket.getRemoteSocketAddress());
+            LOGGER.info("Closed connection: #%d %s", channel.hashCode(), socket.getRemoteSocketAddress());
             Thread.interrupted(); // Clear.
             try {
-                socket.close(); // Make sure to close the socket since we failed.
+                channel.close(); // Make sure to close the socket since we failed.
             } catch (IOException ignored) {}
             SeatOfPants.LOGGER.fatal("Unable to process connection! THIS IS BAD!\n%s", t);
+        } finally {
+            if (instance != null && !handedOff) {
+                instance.cancelReservation();
+            }
+        }
+    }
+
+    public static Relay relay() {
+        switch (config.relayMode) {
+            case NIO:
+                if (nioRelay == null) {
+                    synchronized (SeatOfPants.class) {
+                        if (nioRelay == null) {
+                            int threads = config.relayIoThreads > 0 ? config.relayIoThreads : Runtime.getRuntime().availableProcessors();
+                            nioRelay = new NioRelay(threads);
+                        }
+                    }
+                }
+                return nioRelay;
+
+            case THREADS:
+            default:
+                return threadedRelay;
         }
     }
 
     public static List<String> getInstanceAddresses() {
-        return new ArrayList<>(instances.values())
-            .parallelStream()
+        return instances.values()
+            .stream()
             .filter((i) -> i.isAlive())
             .map((i) -> i.getAddress())
             .toList();
     }
 
+    /**
+     * @return the last known resource usage of every instance that reports it.
+     */
+    public static JsonObject getResourceUsage() {
+        JsonObject json = new JsonObject();
+        for (Instance instance : instances.values()) {
+            ResourceUsage usage = instance.resourceUsage();
+            if (usage != null) {
+                json.put(instance.id, usage.toJson());
+            }
+        }
+        return json;
+    }
+
     public static long getConnectionCount() {
-        return new ArrayList<>(instances.values())
-            .parallelStream()
-            .collect(Collectors.summingLong((i) -> i.connectionsCount()));
+        return Metrics.totals.connectionsAccepted.sum() - Metrics.totals.connectionsClosed.sum();
+    }
+
+    /**
+     * @return the amount of free connection slots on instances that can be placed
+     *         onto.
+     */
+    public static long getWarmCapacity() {
+        return instances.values()
+            .stream()
+            .filter((i) -> i.isAlive())
+            .filter((i) -> !i.isExpired())
+            .filter((i) -> !i.isAboutToExpire()) // Don't count instances that are about to expire.
+            .mapToLong((i) -> Math.max(0, config.maxConnectionsPerInstance - i.connectionsCount())) // max() to avoid a negative value.
+            .sum();
+    }
+
+    /**
+     * @return the part of {@link #getWarmCapacity()} that can be placed onto
+     *         right now, i.e not frozen.
+     */
+    public static long getHotCapacity() {
+        return instances.values()
+            .stream()
+            .filter((i) -> i.isAlive())
+            .filter((i) -> !i.isFrozen() && !i.isThawing())
+            .filter((i) -> !i.isExpired())
+            .filter((i) -> !i.isAboutToExpire())
+            .mapToLong((i) -> Math.max(0, config.maxConnectionsPerInstance - i.connectionsCount()))
+            .sum();
+    }
+
+    public static String getMetrics() {
+        return Metrics.render(instances.values(), getWarmCapacity(), getHotCapacity(), creations.reserved());
     }
 
     public static void notifyDisconnect() {
-        synchronized (notifications) {
-            notifications.notify();
+        admission.signal();
+        scaler.trigger(Scaler.Trigger.CONNECTION_CLOSED);
+    }
+
+    /**
+     * @return a builder for the threads used along the connection path, virtual
+     *         threads if {@link Config#useVirtualThreads} is enabled.
+     */
+    public static Thread.Builder connectionThread() {
+        return config.useVirtualThreads ? Thread.ofVirtual() : Thread.ofPlatform();
+    }
+
+    /**
+     * Asks for enough instances to serve every client that is waiting in the
+     * admission queue. Concurrent calls coalesce, only the instances that aren't
+     * already on their way get created.
+     */
+    public static void requestCapacity() {
+        if (isShuttingDown) return;
+
+        // Thawing is much quicker than creating, so use up the frozen instances first.
+        long needed = (long) Math.ceil(admission.depth() / (double) config.maxConnectionsPerInstance);
+        for (Instance instance : instances.values()) {
+            if (instance.isThawing()) needed--;
+        }
+        for (Instance instance : instances.values()) {
+            if (needed <= 0) return;
+            if (!instance.isFrozen() || !instance.isAlive()) continue;
+
+            needed--;
+            Thread
+                .ofVirtual()
+                .name("Thaw " + instance.id)
+                .start(instance::thaw);
+        }
+
+        int granted = creations.claim(needed - creations.reserved(), instances.size());
+        if (granted <= 0) return;
+
+        LOGGER.debug("Creating %d instance(s) on-demand for waiting clients.", granted);
+        for (int i = 0; i < granted; i++) {
+            creations.submit(SeatOfPants::createNewInstance);
         }
     }
 
-    private static void createNewInstance() throws InstanceCreationException {
-        try (Watchdog wd = new Watchdog(config.providerMaxCreationTimeSeconds * 1000, "Instance create")) {
-            if (config.maxInstancesLimit != -1 && instances.size() >= config.maxInstancesLimit) {
-                return; // Don't create another.
+    /**
+     * Freezes idle instances beyond {@link Config#instanceHotRatio}, or thaws
+     * some if we've dipped below it.
+     */
+    private static void balanceFrozenPool() {
+        if (config.instanceHotRatio < 0) return;
+
+        long requiredHotConnections = (long) (config.maxConnectionsPerInstance * config.instanceHotRatio);
+        long hotConnections = getHotCapacity() - admission.depth();
+
+        if (hotConnections < requiredHotConnections) {
+            for (Instance instance : instances.values()) {
+                if (hotConnections >= requiredHotConnections) break;
+                if (!instance.isFrozen() || !instance.isAlive() || instance.isExpired() || instance.isAboutToExpire()) continue;
+
+                hotConnections += config.maxConnectionsPerInstance;
+                Thread
+                    .ofVirtual()
+                    .name("Thaw " + instance.id)
+                    .start(instance::thaw);
+            }
+        } else {
+            long graceMs = TimeUnit.SECONDS.toMillis(config.instanceFreezeGraceSeconds);
+            List<Instance> canBeFrozen = instances.values()
+                .stream()
+                .filter((i) -> i.isAlive())
+                .filter((i) -> i.idleTime() >= graceMs) // Also excludes instances with connections.
+                .filter((i) -> !i.isFrozen() && !i.isThawing())
+                .sorted((i1, i2) -> Long.compare(i2.idleTime(), i1.idleTime())) // Prefer the longest idle.
+                .toList();
+
+            for (Instance instance : canBeFrozen) {
+                if (hotConnections - config.maxConnectionsPerInstance < requiredHotConnections) break;
+
+                hotConnections -= config.maxConnectionsPerInstance;
+                Thread
+                    .ofVirtual()
+                    .name("Freeze " + instance.id)
+                    .start(instance::freeze);
             }
+        }
+    }
 
+    private static void createNewInstance() throws InstanceCreationException {
+        long deadline = System.currentTimeMillis() + config.providerMaxCreationTimeSeconds * 1000;
+        try (Watchdog wd = new Watchdog(config.providerMaxCreationTimeSeconds * 1000, "Instance create")) {
             String id = String.format("SOP.%s.%s", config.sopId, UUID.randomUUID().toString());
             LOGGER.info("Creating instance... (will be %s)", id);
 
             Instance instance = SeatOfPants.provider.create(id);
+            try {
+                ReadinessChecker.awaitReady(instance, deadline);
+            } catch (Throwable t) {
+                instance.close();
+                throw new InstanceCreationException(t);
+            }
+
+            // It's placeable from here on out.
             instances.put(id, instance);
+            placement.update(instance);
+            healthChecker.watch(instance);
+            Metrics.instancesCreated.increment();
             LOGGER.info("Created instance: %s", id);
+            scaler.trigger(Scaler.Trigger.INSTANCE_READY);
+        } catch (Throwable t) {
+            Metrics.instanceCreationFailures.increment();
+            throw t;
         } finally {
             Thread.interrupted(); // Clear.
-            synchronized (notifications) {
-                notifications.notifyAll();
-            }
         }
     }
 
@@ -185,46 +345,40 @@ public class SeatOfPants {
                 .parallelStream()
                 .filter((i) -> !i.isAlive())
                 .forEach((i) -> {
+                    placement.remove(i);
                     instances.remove(i.id);
+                    Metrics.recordDestroyed(Metrics.DestroyReason.DEAD);
                     LOGGER.info("Pruned instance: %s", i.id);
                 });
 
             switch (config.scalingBehavior) {
+                case PREDICTIVE:
                 case DYNAMIC_POOL: {
-                    if (config.instanceWarmRatio > 0) {
-                        long requiredFreeConnections = (long) (config.maxConnectionsPerInstance * config.instanceWarmRatio);
+                    boolean isPredictive = config.scalingBehavior == Config.ScalingBehavior.PREDICTIVE;
+                    if (config.instanceWarmRatio > 0 || isPredictive) {
+                        long requiredFreeConnections = (long) (config.maxConnectionsPerInstance * Math.max(0, config.instanceWarmRatio));
+
+                        if (isPredictive) {
+                            // Whatever arrives before a new instance could be ready has to be covered by what we have now.
+                            long expectedConnections = forecaster.expectedConnections(Forecaster.horizonMs());
+                            requiredFreeConnections += Math.max(0, expectedConnections - getConnectionCount());
+                        }
 
                         // Count the warm instances.
-                        long availableConnectionCount = new ArrayList<>(instances.values())
-                            .stream()
-                            .filter((i) -> i.isAlive())
-                            .filter((i) -> !i.isExpired())
-                            .filter((i) -> !i.isAboutToExpire()) // Don't count instances that are about to expire.
-                            .mapToLong((i) -> Math.max(0, config.maxConnectionsPerInstance - i.connectionsCount())) // max() to avoid a negative value.
-                            .sum();
+                        long availableConnectionCount = getWarmCapacity();
+
+                        // Slots that are on their way count, but clients already waiting for one will take them.
+                        availableConnectionCount += creations.reserved() * (long) config.maxConnectionsPerInstance;
+                        availableConnectionCount -= admission.depth();
 
                         if (availableConnectionCount < requiredFreeConnections) {
                             // Spin up more instances.
-                            long amountToCreate = (long) Math.ceil((requiredFreeConnections - availableConnectionCount) / (double) config.maxConnectionsPerInstance);
+                            long amountToCreate = creations.claim((long) Math.ceil((requiredFreeConnections - availableConnectionCount) / (double) config.maxConnectionsPerInstance), instances.size());
 
-                            // Parallelize.
-                            List<Thread> waitFor = new LinkedList<>();
+                            // Don't wait on them, they finish in the background.
                             for (int i = 0; i < amountToCreate; i++) {
-                                waitFor.add(
-                                    Thread.ofPlatform().start(() -> {
-                                        try {
-                                            createNewInstance();
-                                        } catch (InstanceCreationException e) {
-                                            SeatOfPants.LOGGER.fatal("Unable to create instance! THIS IS BAD!\n%s", e);
-                                        }
-                                    })
-                                );
+                                creations.submit(SeatOfPants::createNewInstance);
                             }
-                            waitFor.forEach((t) -> {
-                                try {
-                                    t.join();
-                                } catch (InterruptedException ignored) {}
-                            });
                         } else if (availableConnectionCount > requiredFreeConnections) {
                             // See if we can save money by closing instances with 0 connections.
                             // We don't want to kill anything that has >0 because we don't know how the app
@@ -233,6 +387,7 @@ public class SeatOfPants {
                                 .parallelStream()
                                 .filter((i) -> i.isAlive())
                                 .filter((i) -> i.connectionsCount() == 0)
+                                .filter((i) -> !i.isFrozen() && !i.isThawing()) // Those are the hot/frozen balancer's business.
                                 .sorted((i1, i2) -> Long.compare(i1.age(), i2.age())) // Prefer older instances.
                                 .collect(Collectors.toList());
                             long availableConnectionCountCopy = availableConnectionCount;
@@ -245,14 +400,19 @@ public class SeatOfPants {
                                     break;
                                 }
 
+                                if (!instance.claimForClose()) {
+                                    // Someone got placed onto it since we looked, it's not ours to close anymore.
+                                    availableConnectionCountCopy += config.maxConnectionsPerInstance;
+                                    continue;
+                                }
+                                instances.remove(instance.id); // Or let the next pass prune it as dead.
                                 Thread.ofPlatform().start(() -> {
                                     try {
                                         instance.close();
                                     } catch (Throwable t) {
                                         SeatOfPants.LOGGER.warn("Error whilst closing instance:\n%s", t);
-                                    } finally {
-                                        instances.remove(instance.id);
                                     }
+                                    Metrics.recordDestroyed(Metrics.DestroyReason.UNUSED);
                                     LOGGER.info("Killed unused instance: %s", instance.id);
                                 });
                             }
@@ -268,32 +428,20 @@ public class SeatOfPants {
                         .filter((i) -> !i.isExpired())
                         .filter((i) -> !i.isAboutToExpire()) // Don't count instances that are about to expire.
                         .count();
+                    amountAlive += creations.reserved();
 
-                    long amountToCreate = config.maxInstancesLimit - amountAlive;
+                    long amountToCreate = creations.claim(config.maxInstancesLimit - amountAlive, instances.size());
                     if (amountToCreate <= 0) break;
 
-                    // Parallelize.
-                    List<Thread> waitFor = new LinkedList<>();
                     for (int i = 0; i < amountToCreate; i++) {
-                        waitFor.add(
-                            Thread.ofPlatform().start(() -> {
-                                try {
-                                    createNewInstance();
-                                } catch (InstanceCreationException e) {
-                                    SeatOfPants.LOGGER.fatal("Unable to create instance! THIS IS BAD!\n%s", e);
-                                }
-                            })
-                        );
+                        creations.submit(SeatOfPants::createNewInstance);
                     }
-                    waitFor.forEach((t) -> {
-                        try {
-                            t.join();
-                        } catch (InterruptedException ignored) {}
-                    });
                     break;
                 }
             }
 
+            balanceFrozenPool();
+
             if (config.instanceMaxAgeMinutes > 0) {
                 // Prune any expired instances.
                 new ArrayList<>(instances.values())
@@ -315,6 +463,9 @@ public class SeatOfPants {
                                     return; // Continue to let it live.
                                 }
 
+                                if (!instance.claimForClose()) {
+                                    return; // Someone got placed onto it since we looked, try again next pass.
+                                }
                                 break; // No connections, trigger the kill code below.
 
                             case KILL_INSTANTLY:
@@ -323,14 +474,15 @@ public class SeatOfPants {
 
                         // We're ready to kill it. See the above lines to see when this happens or
                         // doesn't happen.
+                        placement.remove(instance);
+                        instances.remove(instance.id); // Closing can take a while, don't let the next pass see it.
                         Thread.ofVirtual().start(() -> {
                             try {
                                 instance.close();
                             } catch (Throwable t) {
                                 SeatOfPants.LOGGER.warn("Error whilst closing instance:\n%s", t);
-                            } finally {
-                                instances.remove(instance.id);
                             }
+                            Metrics.recordDestroyed(Metrics.DestroyReason.EXPIRED);
                             LOGGER.info("Killed expired instance: %s", instance.id);
                         });
                     });
@@ -21,6 +21,15 @@ public class Config {
     public int port = 10246;
     public int apiPort = -1; // -1 to disable.
 
+    public int acceptorThreads = 1; // Each gets its own SO_REUSEPORT listener where supported.
+    public int acceptBacklog = 50; // 0 = the OS default.
+    public int acceptReceiveBufferSize = -1; // SO_RCVBUF in bytes. -1 = the OS default.
+    public boolean clientTcpNoDelay = false;
+
+    public ListenerMode listenerMode = ListenerMode.PROXY;
+    public long redirectLeaseSeconds = 30; // How long a redirected client's slot stays reserved on the instance.
+    public String redirectScheme = "http"; // Only used by HTTP_REDIRECT.
+
     public @Nullable String heartbeatUrl = null;
     public long heartbeatIntervalSeconds = 15;
 
@@ -28,18 +37,43 @@ public class Config {
     public JsonObject providerConfig;
     public int providerMaxRetries = 500;
     public long providerMaxCreationTimeSeconds = 120;
-    public long providerInstanceWaitTimeSeconds = 5; // Time to wait for the container be ready. -1 to disable.
+    public long providerInstanceWaitTimeSeconds = 5; // Time to wait for the container be ready. -1 to disable. Only used when there's no readiness probe.
+    public int creationParallelism = 4; // How many instances may be created at once, the rest wait in line.
+    public ReadinessProbe readinessProbe = new ReadinessProbe();
+
+    public long healthCheckIntervalSeconds = 30;
+    public long healthCheckTimeoutSeconds = 20;
+    public int healthCheckConcurrency = 4; // Requires a restart to change.
+
+    public int admissionMaxQueueDepth = -1; // Clients waiting for capacity beyond this are rejected. -1 to disable.
+    public long admissionMaxWaitSeconds = -1; // -1 = providerMaxCreationTimeSeconds * 2.
 
     public ScalingBehavior scalingBehavior = ScalingBehavior.DYNAMIC_POOL;
+    public long scalerDebounceMilliseconds = 25; // How long to let a burst of events settle before scaling.
+    public long scalerReconcileIntervalSeconds = 60; // Scale this often even if nothing happened, as a safety net.
     public int maxInstancesLimit = -1;
     public int maxConnectionsPerInstance = 1;
     public double instanceWarmRatio = 1;
+    public double instanceHotRatio = -1; // How much of the warm pool to keep unfrozen, the rest gets frozen if the provider supports it. -1 to disable.
+    public long instanceFreezeGraceSeconds = 30; // How long an instance must sit without connections before it may be frozen.
+    public long forecastWindowSeconds = 10; // PREDICTIVE only. Arrivals are counted over windows this long.
+    public double forecastLevelSmoothing = .3; // PREDICTIVE only. 0-1, higher follows changes in the arrival rate quicker.
+    public double forecastTrendSmoothing = .1; // PREDICTIVE only. 0-1, higher follows changes in the trend quicker.
+    public double forecastDurationSmoothing = .05; // PREDICTIVE only. 0-1, how much each ended session moves the average duration.
+    public double instanceOverloadRatio = -1; // Skip instances using this much (0-1) of their CPU or memory limit when placing. -1 to disable.
 
     public InstanceExpireBehavior expirationBehavior = InstanceExpireBehavior.WAIT_FOR_LAST_CONNECTIONS;
     public long instanceMaxAgeMinutes = -1; // -1 to disable.
     public long instanceAboutToExpireMinutes = 3;
     public long killAfterWaitingForLastMinutes = -1; // -1 to disable.
 
+    public boolean useVirtualThreads = false; // Runs accepting, placement and relaying on virtual threads.
+    public RelayMode relayMode = RelayMode.THREADS;
+    public int relayIoThreads = -1; // Only used by NIO. -1 = one per core.
+    public int relayBufferSize = 16 * 1024; // Bytes per pooled direct buffer.
+    public int relayBufferPoolSize = 1024; // Maximum amount of idle buffers kept around for reuse.
+    public int relayMaxDirectBuffers = 4096; // Cap on direct buffers (in use + pooled), past it relays use heap buffers. -1 = no cap.
+
     public long instanceConnectionRateMilliseconds = -1; // -1 to disable.
     public long instanceDisconnectionRateMilliseconds = -1; // -1 to disable.
 
@@ -58,15 +92,67 @@ public class Config {
         this.instanceDisconnectionRateMilliseconds = e.getAsNumber().longValue() * 1000;
     }
 
+    @ToString
+    @JsonClass(exposeAll = true)
+    public static class ReadinessProbe {
+        public Type type = Type.NONE;
+        public long intervalMilliseconds = 100;
+        public long timeoutMilliseconds = 2000; // Per attempt.
+
+        public String httpPath = "/";
+        public int httpExpectedStatus = 200;
+
+        public @Nullable String scriptSend = null; // Sent as-is once connected. null to send nothing.
+        public @Nullable String scriptExpect = null; // The response must start with this. null to only wait for the send.
+
+        public static enum Type {
+            NONE,
+            TCP,
+            HTTP,
+            SCRIPT,
+            ;
+        }
+
+    }
+
     public static enum InstanceExpireBehavior {
         WAIT_FOR_LAST_CONNECTIONS,
         KILL_INSTANTLY,
         ;
     }
 
+    public static enum ListenerMode {
+        /**
+         * Relay every byte between the client and the instance.
+         */
+        PROXY,
+
+        /**
+         * Reply to the client's HTTP request with a 307 to the instance.
+         */
+        HTTP_REDIRECT,
+
+        /**
+         * Write the instance's address followed by a newline, then hang up.
+         */
+        HANDSHAKE,
+        ;
+    }
+
+    public static enum RelayMode {
+        THREADS,
+        NIO,
+        ;
+    }
+
     public static enum ScalingBehavior {
         DYNAMIC_POOL,
         FIXED_POOL,
+        /**
+         * Like {@link #DYNAMIC_POOL}, but also provisions for the connections that
+         * are forecasted to arrive while a new instance is being created.
+         */
+        PREDICTIVE,
         ;
     }
 
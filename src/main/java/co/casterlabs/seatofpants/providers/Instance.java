@@ -2,15 +2,24 @@ package co.casterlabs.seatofpants.providers;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.seatofpants.HealthChecker;
+import co.casterlabs.seatofpants.Metrics;
+import co.casterlabs.seatofpants.Scaler;
 import co.casterlabs.seatofpants.SeatOfPants;
+import co.casterlabs.seatofpants.relay.RelaySession;
 import co.casterlabs.seatofpants.util.Watchdog;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -18,22 +27,41 @@ import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 
 @RequiredArgsConstructor
 public abstract class Instance implements Closeable {
-    private static final long CACHE_ALIVE_CHECK_FOR = TimeUnit.SECONDS.toMillis(30);
+    // Sentinels for connectionsCount, so that freezing and reserving can't race.
+    private static final int FROZEN = -1;
+    private static final int THAWING = -2;
+    private static final int CLOSING = -3;
+
+    private static final ScheduledExecutorService leaseExpiry = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform()
+            .name("Lease expiry")
+            .daemon(true)
+            .factory()
+    );
 
     private final long createdAt = System.currentTimeMillis();
 
-    private boolean isAlive = true;
-    private long lastAliveCheck = 0;
+    private volatile boolean isAlive = true;
 
     public final @NonNull String id;
-    protected final FastLogger logger;
+    public final FastLogger logger;
+
+    public final Metrics.InstanceCounters counters = new Metrics.InstanceCounters();
 
     private AtomicInteger connectionsCount = new AtomicInteger(0);
-    private Set<Socket> connections = Collections.synchronizedSet(new HashSet<>());
+    private Set<RelaySession> connections = ConcurrentHashMap.newKeySet();
+    private AtomicInteger leasesCount = new AtomicInteger(0);
 
-    private volatile boolean hasBeenDestroyed = false;
+    private final AtomicBoolean hasBeenDestroyed = new AtomicBoolean(false);
+    private volatile long readinessLatency = -1;
+    private volatile long lastUsedAt = this.createdAt;
+    private volatile @Nullable ResourceUsage resourceUsage;
 
-    protected abstract Socket connect() throws IOException;
+    /**
+     * @return the address that SOP should connect to when relaying a client to
+     *         this instance.
+     */
+    public abstract SocketAddress getSocketAddress();
 
     public abstract String getAddress();
 
@@ -41,49 +69,92 @@ public abstract class Instance implements Closeable {
 
     protected abstract void close0();
 
-    public final synchronized boolean isAlive() {
-        if (this.hasBeenDestroyed) return false;
-
-        if (System.currentTimeMillis() - this.lastAliveCheck > CACHE_ALIVE_CHECK_FOR) {
-            try (Watchdog wd = new Watchdog(20_000, "Instance health check")) {
-                this.isAlive = this.isAlive0();
-            } catch (Exception e) {
-                this.logger.trace(e);
-                // Assume the last state.
-            } finally {
-                Thread.interrupted(); // Clear.
+    /**
+     * @return whether or not this instance can be frozen (e.g paused) while it's
+     *         sitting idle.
+     */
+    protected boolean supportsFreezing() {
+        return false;
+    }
+
+    /**
+     * Only called if {@link #supportsFreezing()}.
+     */
+    protected void freeze0() throws IOException {}
+
+    /**
+     * Only called if {@link #supportsFreezing()}.
+     */
+    protected void thaw0() throws IOException {}
+
+    /**
+     * @return the instance's current resource usage, or null if the provider
+     *         can't tell.
+     */
+    protected @Nullable ResourceUsage resourceUsage0() throws IOException {
+        return null;
+    }
+
+    /**
+     * @implNote This never blocks, the actual check is done in the background by
+     *           the {@link HealthChecker}.
+     */
+    public final boolean isAlive() {
+        return !this.hasBeenDestroyed.get() && this.isAlive;
+    }
+
+    /**
+     * Runs the (possibly slow) provider health check and updates
+     * {@link #isAlive()}. Death is sticky, a check that was started before
+     * {@link #markDead(String)} can't bring the instance back.
+     */
+    public final void refreshHealth() {
+        try (Watchdog wd = new Watchdog(TimeUnit.SECONDS.toMillis(SeatOfPants.config.healthCheckTimeoutSeconds), "Instance health check")) {
+            if (!this.isAlive0()) {
+                this.isAlive = false;
             }
-            this.lastAliveCheck = System.currentTimeMillis();
+            this.resourceUsage = this.resourceUsage0();
+        } catch (Exception e) {
+            this.logger.trace(e);
+            // Assume the last state.
+        } finally {
+            Thread.interrupted(); // Clear.
         }
+    }
+
+    /**
+     * Marks the instance as dead right away, for when the provider learns of it
+     * before the next health check would. Pruning and replacement get kicked
+     * off in the background.
+     */
+    public final void markDead(@NonNull String reason) {
+        if (!this.isAlive()) return;
+        this.isAlive = false;
 
-        return this.isAlive;
+        this.logger.info("Instance died: %s", reason);
+        SeatOfPants.placement.remove(this);
+        SeatOfPants.scaler.trigger(Scaler.Trigger.INSTANCE_DIED);
     }
 
     @Override
     public final void close() {
-        if (this.hasBeenDestroyed) return;
-
         boolean wasConsideredToBeAlive = this.isAlive();
-        this.hasBeenDestroyed = true;
+        if (!this.hasBeenDestroyed.compareAndSet(false, true)) return; // Someone else is already closing it.
 
         if (wasConsideredToBeAlive && SeatOfPants.config.instanceDisconnectionRateMilliseconds > 0) {
             // We don't want to do this if we've determined the instance to be unhealthy or
             // otherwise dead.
             logger.info("Starting slow/graceful disconnect for %d clients.", this.connections.size());
-            for (Socket s : new ArrayList<>(this.connections)) {
-                try {
-                    s.close();
-                } catch (IOException ignored) {}
+            for (RelaySession s : new ArrayList<>(this.connections)) {
+                s.close();
                 try {
                     TimeUnit.MILLISECONDS.sleep(SeatOfPants.config.instanceDisconnectionRateMilliseconds);
                 } catch (InterruptedException ignored) {}
             }
         } else {
             logger.info("Disconnecting %d clients, we're being closed.", this.connections.size());
-            for (Socket s : new ArrayList<>(this.connections)) {
-                try {
-                    s.close();
-                } catch (IOException ignored) {}
+            for (RelaySession s : new ArrayList<>(this.connections)) {
+                s.close();
             }
         }
 
@@ -91,80 +162,199 @@ public abstract class Instance implements Closeable {
     }
 
     /**
-     * @implNote This method blocks until the connection is terminated. The provided
-     *           Socket will be automatically closed for you.
+     * Atomically claims a connection slot, to be used by {@link #adopt(SocketChannel)}.
+     *
+     * @return false if the instance is full.
      */
-    public synchronized final void adopt(@NonNull Socket clientSocket) {
-        this.connectionsCount.incrementAndGet();
-        this.connections.add(clientSocket);
+    public final boolean tryReserve() {
+        int count;
+        do {
+            count = this.connectionsCount.get();
+            if (count < 0 || count >= SeatOfPants.config.maxConnectionsPerInstance) {
+                return false;
+            }
+        } while (!this.connectionsCount.compareAndSet(count, count + 1));
 
-        Thread
-            .ofPlatform()
-            .name(String.format("TCP #%d->%s", clientSocket.hashCode(), this.id))
-            .start(() -> {
-                try {
-                    clientSocket.setSoTimeout(SeatOfPants.SO_TIMEOUT);
-
-                    int retryCount = 0;
-                    while (!clientSocket.isClosed()) {
-                        try (Socket instanceSocket = this.connect()) {
-                            instanceSocket.setSoTimeout(SeatOfPants.SO_TIMEOUT);
-                            this.doProxy(clientSocket, instanceSocket);
-                        } catch (IOException e) {
-                            if (retryCount >= SeatOfPants.config.providerMaxRetries) {
-                                try {
-                                    clientSocket.close();
-                                } catch (IOException ignored) {} finally {
-                                    SeatOfPants.notifyDisconnect();
-                                }
-                                this.logger.severe("Timed out whilst adopting:\n%s", e);
-                                return;
-                            }
-
-                            retryCount++;
-
-                            try {
-                                Thread.sleep(100); // Try to give the process enough time to start up.
-                            } catch (InterruptedException e1) {}
-                            continue;
-                        }
-                    }
-                } catch (Throwable t) {
-                    this.logger.fatal(t);
-                } finally {
-                    SeatOfPants.LOGGER.info("Closed connection: #%d %s", clientSocket.hashCode(), clientSocket.getRemoteSocketAddress());
-                    this.connectionsCount.decrementAndGet();
-                    this.connections.remove(clientSocket);
-                    SeatOfPants.notifyDisconnect();
-                }
-            });
-    }
-
-    private final void doProxy(Socket clientSocket, Socket instanceSocket) throws IOException {
-        try (clientSocket; instanceSocket) {
-            Thread current = Thread.currentThread();
-
-            Thread instanceToClient = Thread
-                .ofPlatform()
-                .name(String.format("TCP #%d<-%s", clientSocket.hashCode(), this.id))
-                .start(() -> {
-                    try {
-                        instanceSocket.getInputStream().transferTo(clientSocket.getOutputStream());
-                    } catch (IOException ignored) {} finally {
-                        current.interrupt();
-                    }
-                });
-
-            try {
-                clientSocket.getInputStream().transferTo(instanceSocket.getOutputStream());
-            } catch (IOException ignored) {} finally {
-                instanceToClient.interrupt();
+        if (this.isAlive()) {
+            SeatOfPants.placement.update(this);
+        }
+        return true;
+    }
+
+    /**
+     * @implNote This method does not block. The configured relay takes ownership
+     *           of the provided channel and will close it once the connection
+     *           is terminated. A slot must have already been claimed with
+     *           {@link #tryReserve()}, the session owns it from here on (even if
+     *           this throws).
+     */
+    public final void adopt(@NonNull SocketChannel clientChannel) {
+        this.counters.connectionAccepted();
+
+        long adoptedAt = System.currentTimeMillis();
+        RelaySession session = new RelaySession(this, clientChannel, (closed) -> {
+            SeatOfPants.LOGGER.info("Closed connection: %s", closed);
+            this.counters.connectionClosed();
+            this.connectionsCount.decrementAndGet();
+            this.lastUsedAt = System.currentTimeMillis();
+            this.connections.remove(closed);
+            SeatOfPants.forecaster.recordSessionDuration(this.lastUsedAt - adoptedAt);
+            if (this.isAlive()) {
+                SeatOfPants.placement.update(this);
             }
+            SeatOfPants.notifyDisconnect();
+        });
+        this.connections.add(session);
+
+        try {
+            SeatOfPants.relay().relay(session);
+        } catch (Throwable t) {
+            session.close(); // Gives the slot back.
+            throw t;
+        }
+        SeatOfPants.scaler.trigger(Scaler.Trigger.CONNECTION_ADOPTED);
+    }
+
+    /**
+     * Holds onto a slot claimed with {@link #tryReserve()} for a client that
+     * talks to the instance directly, instead of through us. The slot counts
+     * as a connection until the lease runs out.
+     */
+    public final void lease(long durationMs) {
+        this.counters.connectionAccepted();
+        this.leasesCount.incrementAndGet();
+        SeatOfPants.scaler.trigger(Scaler.Trigger.CONNECTION_ADOPTED);
+
+        leaseExpiry.schedule(() -> {
+            this.leasesCount.decrementAndGet();
+            this.counters.connectionClosed();
+            SeatOfPants.forecaster.recordSessionDuration(durationMs);
+            this.connectionsCount.decrementAndGet();
+            this.lastUsedAt = System.currentTimeMillis();
+            if (this.isAlive()) {
+                SeatOfPants.placement.update(this);
+            }
+            SeatOfPants.notifyDisconnect();
+        }, durationMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives back a slot claimed with {@link #tryReserve()} that ended up unused.
+     */
+    public final void cancelReservation() {
+        this.connectionsCount.decrementAndGet();
+        if (this.isAlive()) {
+            SeatOfPants.placement.update(this);
         }
+        SeatOfPants.notifyDisconnect();
+    }
+
+    /**
+     * @return how many of {@link #connectionsCount()} are leases rather than
+     *         relayed connections.
+     */
+    public final int leasesCount() {
+        return this.leasesCount.get();
     }
 
     public final int connectionsCount() {
-        return this.connectionsCount.get();
+        return Math.max(0, this.connectionsCount.get()); // Frozen instances have none.
+    }
+
+    /**
+     * Freezes the instance if it's idle, it won't be placed onto until it's been
+     * thawed.
+     *
+     * @return false if the instance couldn't be frozen.
+     */
+    public final boolean freeze() {
+        if (!this.supportsFreezing() || !this.isAlive()) return false;
+        if (!this.connectionsCount.compareAndSet(0, FROZEN)) return false; // In use (or already frozen).
+
+        SeatOfPants.placement.remove(this);
+        try {
+            this.freeze0();
+            this.logger.debug("Frozen.");
+            return true;
+        } catch (Exception e) {
+            this.logger.warn("Unable to freeze: %s", e);
+            this.connectionsCount.set(0);
+            SeatOfPants.placement.update(this);
+            return false;
+        }
+    }
+
+    /**
+     * Thaws the instance and makes it placeable again.
+     *
+     * @return false if the instance wasn't frozen (or is already being thawed).
+     */
+    public final boolean thaw() {
+        if (!this.connectionsCount.compareAndSet(FROZEN, THAWING)) return false;
+
+        try {
+            long start = System.currentTimeMillis();
+            this.thaw0();
+            this.logger.debug("Thawed in %dms.", System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            this.connectionsCount.set(0);
+            this.markDead("Unable to thaw: " + e);
+            return false;
+        }
+
+        this.lastUsedAt = System.currentTimeMillis();
+        this.connectionsCount.set(0);
+        SeatOfPants.placement.update(this);
+        SeatOfPants.admission.signal(); // Wake up anyone waiting for capacity.
+        return true;
+    }
+
+    /**
+     * Atomically takes an idle (or frozen) instance out of rotation so that it
+     * can be closed, nobody can reserve a slot on it afterwards.
+     *
+     * @return false if the instance has connections (or is already closing), in
+     *         which case it must be left alone.
+     */
+    public final boolean claimForClose() {
+        if (!this.connectionsCount.compareAndSet(0, CLOSING) && !this.connectionsCount.compareAndSet(FROZEN, CLOSING)) {
+            return false;
+        }
+        SeatOfPants.placement.remove(this);
+        return true;
+    }
+
+    public final boolean isFrozen() {
+        return this.connectionsCount.get() == FROZEN;
+    }
+
+    public final boolean isThawing() {
+        return this.connectionsCount.get() == THAWING;
+    }
+
+    /**
+     * @return how long the instance has gone without any connections, in
+     *         milliseconds. 0 if it currently has some.
+     */
+    public final long idleTime() {
+        if (this.connectionsCount.get() != 0) return 0;
+        return System.currentTimeMillis() - this.lastUsedAt;
+    }
+
+    /**
+     * @return how long the instance took to pass its readiness probe, in
+     *         milliseconds. -1 if it hasn't yet.
+     */
+    public final long readinessLatency() {
+        return this.readinessLatency;
+    }
+
+    public final void setReadinessLatency(long readinessLatency) {
+        this.readinessLatency = readinessLatency;
+    }
+
+    public final long createdAt() {
+        return this.createdAt;
     }
 
     public final long age() {
@@ -190,6 +380,23 @@ public abstract class Instance implements Closeable {
         return myAge >= aboutToExpireAgeMs;
     }
 
+    /**
+     * @return the usage as of the last health check, null if unknown.
+     */
+    public final @Nullable ResourceUsage resourceUsage() {
+        return this.resourceUsage;
+    }
+
+    /**
+     * @return true if the instance is close to its resource limits, see
+     *         {@link co.casterlabs.seatofpants.config.Config#instanceOverloadRatio}.
+     */
+    public final boolean isOverloaded() {
+        ResourceUsage usage = this.resourceUsage;
+        if (usage == null || SeatOfPants.config.instanceOverloadRatio <= 0) return false;
+        return usage.isOverloaded(SeatOfPants.config.instanceOverloadRatio);
+    }
+
     public final boolean hasCapacity() {
         return this.connectionsCount() < SeatOfPants.config.maxConnectionsPerInstance;
     }
@@ -22,6 +22,11 @@ public interface InstanceProvider {
      */
     public Instance create(@NonNull String idToUse) throws InstanceCreationException;
 
+    /**
+     * Appends any provider specific metrics, in the Prometheus text format.
+     */
+    public default void renderMetrics(StringBuilder sb) {}
+
     @AllArgsConstructor
     public static enum Type {
         EXEC(ExecProvider.class),
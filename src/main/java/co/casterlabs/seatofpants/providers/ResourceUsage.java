@@ -0,0 +1,31 @@
+package co.casterlabs.seatofpants.providers;
+
+import co.casterlabs.rakurai.json.element.JsonObject;
+
+/**
+ * A point-in-time sample of what an instance is using. Limits are -1 when
+ * there aren't any.
+ */
+public record ResourceUsage(double cpuCores, double cpuLimitCores, long memoryBytes, long memoryLimitBytes) {
+
+    /**
+     * @param ratio 0-1 of a limit, e.g .9 for 90%.
+     *
+     * @return true if the instance is at or past the ratio of either limit.
+     */
+    public boolean isOverloaded(double ratio) {
+        if (this.cpuLimitCores > 0 && this.cpuCores >= this.cpuLimitCores * ratio) return true;
+        if (this.memoryLimitBytes > 0 && this.memoryBytes >= this.memoryLimitBytes * ratio) return true;
+        return false;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.put("cpuCores", this.cpuCores);
+        json.put("cpuLimitCores", this.cpuLimitCores);
+        json.put("memoryBytes", this.memoryBytes);
+        json.put("memoryLimitBytes", this.memoryLimitBytes);
+        return json;
+    }
+
+}
@@ -0,0 +1,403 @@
+package co.casterlabs.seatofpants.providers.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.element.JsonElement;
+import co.casterlabs.rakurai.json.element.JsonObject;
+import lombok.NonNull;
+
+/**
+ * A minimal HTTP/1.1 client for the Docker Engine API, spoken directly over
+ * the Engine's unix socket. Idle connections are kept alive and reused, and
+ * any number of requests may be in flight at once.
+ */
+public class DockerEngineClient implements Closeable {
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "PUT", "DELETE", "OPTIONS");
+
+    private final UnixDomainSocketAddress address;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    private volatile @Nullable String registryAuth;
+
+    public DockerEngineClient(@NonNull String socketPath) {
+        this.address = UnixDomainSocketAddress.of(socketPath);
+    }
+
+    /**
+     * @param registryAuth the base64 encoded X-Registry-Auth header, null to
+     *                     disable.
+     */
+    public void setRegistryAuth(@Nullable String registryAuth) {
+        this.registryAuth = registryAuth;
+    }
+
+    public @Nullable String getRegistryAuth() {
+        return this.registryAuth;
+    }
+
+    public Response get(@NonNull String path) throws IOException {
+        return this.request("GET", path, null, null);
+    }
+
+    public Response post(@NonNull String path, @Nullable JsonElement body) throws IOException {
+        return this.request("POST", path, body, null);
+    }
+
+    public Response request(@NonNull String method, @NonNull String path, @Nullable JsonElement body, @Nullable Map<String, String> extraHeaders) throws IOException {
+        byte[] payload = body == null ? null : body.toString(false).getBytes(StandardCharsets.UTF_8);
+
+        Connection conn = this.idle.poll();
+        boolean isReused = conn != null;
+        if (conn == null) {
+            conn = new Connection(this.address);
+        }
+
+        try {
+            Response response;
+            try {
+                response = conn.exchange(method, path, payload, extraHeaders);
+            } catch (IOException e) {
+                if (!isReused) throw e;
+
+                // A POST (create, start, etc) that made it to the Engine may have gone through, so
+                // only replay it if the request never fully left us.
+                if (conn.hasSentRequest && !IDEMPOTENT_METHODS.contains(method)) throw e;
+
+                // The Engine may have closed the idle connection on us, try once more on a fresh one.
+                conn.close();
+                conn = new Connection(this.address);
+                response = conn.exchange(method, path, payload, extraHeaders);
+            }
+
+            if (conn.isReusable && this.idle.size() < MAX_IDLE_CONNECTIONS) {
+                this.idle.add(conn);
+            } else {
+                conn.close();
+            }
+            return response;
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a dedicated connection for a long-lived streaming response (e.g
+     * /events). The returned stream has already been de-chunked.
+     */
+    public InputStream stream(@NonNull String path) throws IOException {
+        Connection conn = new Connection(this.address);
+        try {
+            return conn.openStream("GET", path);
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        Connection conn;
+        while ((conn = this.idle.poll()) != null) {
+            conn.close();
+        }
+    }
+
+    public static String encode(@NonNull String str) {
+        return URLEncoder.encode(str, StandardCharsets.UTF_8);
+    }
+
+    public static record Response(int status, byte[] body) {
+
+        public String bodyAsString() {
+            return new String(this.body, StandardCharsets.UTF_8);
+        }
+
+        public <T extends JsonElement> T json(Class<T> type) throws IOException {
+            try {
+                return Rson.DEFAULT.fromJson(this.bodyAsString(), type);
+            } catch (Exception e) {
+                throw new IOException("Unable to parse Docker Engine response: " + this.bodyAsString(), e);
+            }
+        }
+
+        public boolean isSuccessful() {
+            return this.status >= 200 && this.status < 300;
+        }
+
+        /**
+         * @throws DockerEngineException if the status isn't one of the allowed
+         *                               ones (or 2xx if none were given).
+         */
+        public Response expect(int... allowedStatuses) throws DockerEngineException {
+            if (allowedStatuses.length == 0) {
+                if (this.isSuccessful()) return this;
+            } else {
+                for (int allowed : allowedStatuses) {
+                    if (this.status == allowed) return this;
+                }
+            }
+            throw DockerEngineException.from(this);
+        }
+
+    }
+
+    public static class DockerEngineException extends IOException {
+        private static final long serialVersionUID = 4428105427385405021L;
+
+        public final int status;
+
+        public DockerEngineException(int status, String message) {
+            super(String.format("Docker Engine returned %d: %s", status, message));
+            this.status = status;
+        }
+
+        static DockerEngineException from(Response response) {
+            String message = response.bodyAsString();
+            try {
+                JsonObject json = Rson.DEFAULT.fromJson(message, JsonObject.class);
+                if (json.containsKey("message")) {
+                    message = json.getString("message");
+                }
+            } catch (Exception ignored) {}
+            return new DockerEngineException(response.status, message);
+        }
+
+    }
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private boolean isReusable = true;
+        private boolean hasSentRequest = false;
+
+        Connection(UnixDomainSocketAddress address) throws IOException {
+            this.channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            this.channel.connect(address);
+            this.in = new BufferedInputStream(Channels.newInputStream(this.channel));
+            this.out = Channels.newOutputStream(this.channel);
+        }
+
+        Response exchange(String method, String path, byte[] payload, Map<String, String> extraHeaders) throws IOException {
+            this.writeRequest(method, path, payload, extraHeaders);
+
+            int status = this.readStatus();
+            Map<String, String> headers = this.readHeaders();
+
+            byte[] body;
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = new ChunkedInputStream(this.in).readAllBytes();
+            } else if (headers.containsKey("content-length")) {
+                body = this.in.readNBytes(Integer.parseInt(headers.get("content-length")));
+            } else if (status == 204 || status == 304) {
+                body = new byte[0];
+            } else {
+                // Read until the Engine hangs up.
+                body = this.in.readAllBytes();
+                this.isReusable = false;
+            }
+
+            if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                this.isReusable = false;
+            }
+
+            return new Response(status, body);
+        }
+
+        InputStream openStream(String method, String path) throws IOException {
+            this.writeRequest(method, path, null, null);
+
+            int status = this.readStatus();
+            Map<String, String> headers = this.readHeaders();
+
+            InputStream body = "chunked".equalsIgnoreCase(headers.get("transfer-encoding")) ? new ChunkedInputStream(this.in) : this.in;
+            if (status < 200 || status >= 300) {
+                throw DockerEngineException.from(new Response(status, body.readAllBytes()));
+            }
+
+            SocketChannel channel = this.channel;
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    return body.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return body.read(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        private void writeRequest(String method, String path, byte[] payload, Map<String, String> extraHeaders) throws IOException {
+            this.hasSentRequest = false;
+
+            StringBuilder request = new StringBuilder()
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: docker\r\n")
+                .append("User-Agent: SeatOfPants\r\n");
+
+            if (extraHeaders != null) {
+                for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+                    request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+
+            if (payload != null) {
+                request
+                    .append("Content-Type: application/json\r\n")
+                    .append("Content-Length: ").append(payload.length).append("\r\n");
+            } else if (method.equals("POST")) {
+                request.append("Content-Length: 0\r\n");
+            }
+            request.append("\r\n");
+
+            this.out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            if (payload != null) {
+                this.out.write(payload);
+            }
+            this.out.flush();
+            this.hasSentRequest = true;
+        }
+
+        private int readStatus() throws IOException {
+            // "HTTP/1.1 200 OK"
+            String statusLine = readLine(this.in);
+            if (statusLine == null) {
+                throw new IOException("Docker Engine closed the connection.");
+            }
+
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2) {
+                throw new IOException("Malformed status line from Docker Engine: " + statusLine);
+            }
+            return Integer.parseInt(parts[1]);
+        }
+
+        private Map<String, String> readHeaders() throws IOException {
+            Map<String, String> headers = new LinkedHashMap<>();
+            String line;
+            while ((line = readLine(this.in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon == -1) continue;
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+            return headers;
+        }
+
+        void close() {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static @Nullable String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remainingInChunk = 0;
+        private boolean isDone = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (this.isDone) return false;
+
+            if (this.remainingInChunk == 0) {
+                String sizeLine = readLine(this.in);
+                if (sizeLine == null) {
+                    this.isDone = true;
+                    return false;
+                }
+                if (sizeLine.isEmpty()) {
+                    // The CRLF that trails the previous chunk.
+                    sizeLine = readLine(this.in);
+                    if (sizeLine == null) {
+                        this.isDone = true;
+                        return false;
+                    }
+                }
+
+                int semicolon = sizeLine.indexOf(';'); // Chunk extensions.
+                this.remainingInChunk = Long.parseLong((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+
+                if (this.remainingInChunk == 0) {
+                    // Trailers, terminated by an empty line.
+                    String trailer;
+                    while ((trailer = readLine(this.in)) != null && !trailer.isEmpty());
+                    this.isDone = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.nextChunk()) return -1;
+
+            int b = this.in.read();
+            if (b != -1) this.remainingInChunk--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!this.nextChunk()) return -1;
+
+            int read = this.in.read(b, off, (int) Math.min(len, this.remainingInChunk));
+            if (read == -1) {
+                this.isDone = true;
+                return -1;
+            }
+            this.remainingInChunk -= read;
+            return read;
+        }
+    }
+
+}
@@ -1,21 +1,34 @@
 package co.casterlabs.seatofpants.providers.impl;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.lang.ProcessBuilder.Redirect;
-import java.net.Socket;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jetbrains.annotations.Nullable;
 
-import co.casterlabs.commons.io.streams.StreamUtil;
 import co.casterlabs.rakurai.json.Rson;
 import co.casterlabs.rakurai.json.annotating.JsonClass;
 import co.casterlabs.rakurai.json.element.JsonArray;
+import co.casterlabs.rakurai.json.element.JsonElement;
 import co.casterlabs.rakurai.json.element.JsonObject;
+import co.casterlabs.seatofpants.Metrics;
+import co.casterlabs.seatofpants.ReadinessChecker;
 import co.casterlabs.seatofpants.SeatOfPants;
 import co.casterlabs.seatofpants.providers.Instance;
 import co.casterlabs.seatofpants.providers.InstanceCreationException;
 import co.casterlabs.seatofpants.providers.InstanceProvider;
-import co.casterlabs.seatofpants.util.CommandBuilder;
+import co.casterlabs.seatofpants.providers.impl.DockerEngineClient.DockerEngineException;
 import co.casterlabs.seatofpants.util.Environment;
 import lombok.NonNull;
 import lombok.SneakyThrows;
@@ -25,10 +38,30 @@ public class DockerProvider implements InstanceProvider {
     public static final FastLogger LOGGER = SeatOfPants.LOGGER.createChild("Docker Instance Provider");
 
     private Config config;
+    private DockerEngineClient engine;
+    private final DockerStateCache states = new DockerStateCache();
+    private Thread eventsThread;
+    private Thread pullRefresherThread;
+
+    private final ReentrantLock pullLock = new ReentrantLock();
+    private volatile long lastPullStartedAt = 0;
+
+    private final AtomicBoolean isCheckpointing = new AtomicBoolean(false);
+    private volatile @Nullable Checkpoint checkpoint;
+    private final LongAdder restores = new LongAdder();
+    private final LongAdder restoreFallbacks = new LongAdder();
+    private final LongAdder restoreUnavailable = new LongAdder();
+    private volatile long lastRestoreMilliseconds = -1;
+
+    private final Map<String, Instance> instances = new ConcurrentHashMap<>();
 
     @JsonClass(exposeAll = true)
     private static class Config {
+        public String engineSocket = "/var/run/docker.sock";
+
         public String imageToUse = "hashicorp/http-echo";
+        public PullPolicy pullPolicy = PullPolicy.ALWAYS;
+        public int pullRefreshIntervalSeconds = 300; // Only used by IF_DIGEST_CHANGED.
         public Environment env = new Environment();
         public int port = 5678;
 
@@ -38,12 +71,36 @@ public class DockerProvider implements InstanceProvider {
         public int memoryLimitGb = -1; // -1 = no limit
         public int swapLimitMb = 0; // -1 = no limit, 0 = same as memory limit
 
+        public boolean pauseIdleInstances = false; // Lets SOP pause (cgroup freezer) idle warm instances, see instanceHotRatio.
+
+        public boolean checkpointRestore = false; // Requires an experimental Engine with CRIU.
+        public String checkpointDir = "/var/lib/seatofpants/checkpoints";
+
         private String authRegistry = null; // Null to disable.
         private String authUsername = null; // Null to disable.
         private String authPassword = null; // Null to disable.
 
     }
 
+    public static enum PullPolicy {
+        /**
+         * Pull before every creation (concurrent creations share a pull).
+         */
+        ALWAYS,
+
+        /**
+         * Pull in the background whenever the registry has a new digest, creations
+         * use the local image.
+         */
+        IF_DIGEST_CHANGED,
+
+        /**
+         * Never pull, the image must already be present.
+         */
+        NEVER,
+        ;
+    }
+
     @Override
     public JsonObject getConfig() {
         return (JsonObject) Rson.DEFAULT.toJson(this.config);
@@ -54,89 +111,174 @@ public class DockerProvider implements InstanceProvider {
     public void loadConfig(JsonObject providerConfig) {
         this.config = Rson.DEFAULT.fromJson(providerConfig, Config.class);
 
+        if (this.engine != null) {
+            this.engine.close();
+        }
+        this.engine = new DockerEngineClient(this.config.engineSocket);
+        this.states.retarget(this.engine, String.format("SOP.%s.", SeatOfPants.config.sopId));
+
         if (this.config.authRegistry != null && this.config.authUsername != null && this.config.authPassword != null) {
-            CommandBuilder command = new CommandBuilder()
-                .add("docker", "login")
-                .add(this.config.authRegistry)
-                .add("--username", this.config.authUsername)
-                .add("--password", this.config.authPassword);
-            new ProcessBuilder(command.asList())
-                .redirectError(Redirect.INHERIT)
-                .redirectOutput(Redirect.INHERIT)
-                .redirectInput(Redirect.PIPE)
-                .start()
-                .waitFor();
+            JsonObject auth = new JsonObject();
+            auth.put("username", this.config.authUsername);
+            auth.put("password", this.config.authPassword);
+            auth.put("serveraddress", this.config.authRegistry);
+
+            this.engine.post("/auth", auth).expect();
+            this.engine.setRegistryAuth(
+                Base64.getUrlEncoder().encodeToString(auth.toString(false).getBytes(StandardCharsets.UTF_8))
+            );
+            LOGGER.info("Logged into %s.", this.config.authRegistry);
+        } else {
+            this.engine.setRegistryAuth(null);
         }
-    }
 
-    @Override
-    public Instance create(@NonNull String idToUse) throws InstanceCreationException {
-        try {
-            FastLogger logger = LOGGER.createChild("Instance " + idToUse);
-            int port = this.config.port;
+        this.lastPullStartedAt = 0; // The image may have changed.
 
-            CommandBuilder command = new CommandBuilder()
-                .add("docker", "run")
-                .add("--rm")
-                .add("--detach")
-                .add("--pull", "always")
-                .add("--name", idToUse);
-
-            for (Map.Entry<String, String> entry : this.config.env.get().entrySet()) {
-                command.add(
-                    "-e",
-                    String.format(
-                        "%s=%s",
-                        entry.getKey(),
-                        entry.getValue()
-                    )
-                );
-            }
+        if (this.pullRefresherThread == null) {
+            this.pullRefresherThread = Thread
+                .ofVirtual()
+                .name("Docker image refresher")
+                .start(this::refreshImage);
+        }
 
-            if (this.config.networkToUse != null) {
-                command.add("--network", this.config.networkToUse);
-            }
+        if (this.eventsThread == null) {
+            this.eventsThread = Thread
+                .ofVirtual()
+                .name("Docker events")
+                .start(this::watchEvents);
+        }
+    }
 
-            if (this.config.cpuLimit > 0) {
-                command.add("--cpus", String.valueOf(this.config.cpuLimit));
+    /**
+     * Keeps the local copy of the image up to date for
+     * {@link PullPolicy#IF_DIGEST_CHANGED}, so that creation never has to wait
+     * on the registry.
+     */
+    private void refreshImage() {
+        while (true) {
+            if (this.config.pullPolicy == PullPolicy.IF_DIGEST_CHANGED) {
+                DockerEngineClient engine = this.engine;
+                String image = withTag(this.config.imageToUse);
+
+                try {
+                    String digest = engine
+                        .request("GET", "/distribution/" + image + "/json", null, registryAuthHeaders(engine))
+                        .expect()
+                        .json(JsonObject.class)
+                        .getObject("Descriptor")
+                        .getString("digest");
+
+                    if (!hasLocalDigest(engine, image, digest)) {
+                        LOGGER.info("%s has a new digest (%s), pulling it in the background.", image, digest);
+                        this.pullShared(engine, image);
+                        LOGGER.info("Pulled %s.", image);
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to refresh %s, will use the cached image: %s", image, e);
+                }
             }
 
-            if (this.config.memoryLimitGb > 0) {
-                command.add("--memory", String.valueOf(this.config.memoryLimitGb) + "g");
+            try {
+                TimeUnit.SECONDS.sleep(Math.max(1, this.config.pullRefreshIntervalSeconds));
+            } catch (InterruptedException e) {
+                return;
             }
+        }
+    }
 
-            if (this.config.swapLimitMb == -1) {
-                command.add("--memory-swap", "-1");
-            } else if (this.config.swapLimitMb > 0) {
-                command.add("--memory-swap", String.valueOf(this.config.swapLimitMb) + "m");
-            }
+    /**
+     * Follows the Engine's event stream so that containers which die, OOM or get
+     * stopped from under us are noticed immediately instead of at the next
+     * health check.
+     */
+    private void watchEvents() {
+        JsonArray types = new JsonArray();
+        types.add("container");
 
-            command.add(this.config.imageToUse);
+        JsonArray events = new JsonArray();
+        events.add("die");
+        events.add("oom");
+        events.add("stop");
 
-            new ProcessBuilder(command.asList())
-                .redirectError(Redirect.DISCARD)
-                .redirectOutput(Redirect.DISCARD)
-                .redirectInput(Redirect.PIPE)
-                .start()
-                .waitFor(); // Wait for it to start.
+        JsonObject filters = new JsonObject();
+        filters.put("type", types);
+        filters.put("event", events);
 
-            JsonObject networkSettings = inspect(idToUse, logger)
-                .getObject("NetworkSettings");
+        String prefix = String.format("SOP.%s.", SeatOfPants.config.sopId);
+        long since = System.currentTimeMillis() / 1000;
+        long backoffMs = 1000;
+
+        while (true) {
+            String path = String.format("/events?since=%d&filters=%s", since, DockerEngineClient.encode(filters.toString(false)));
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(this.engine.stream(path), StandardCharsets.UTF_8))) {
+                backoffMs = 1000;
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) continue;
+
+                    JsonObject event = Rson.DEFAULT.fromJson(line, JsonObject.class);
+                    since = event.getNumber("time").longValue();
+
+                    String name = event.getObject("Actor").getObject("Attributes").getString("name");
+                    if (name == null || !name.startsWith(prefix)) continue;
+
+                    String action = event.getString("Action");
+                    this.states.update(name, action.equals("oom") ? "oom" : "exited");
+
+                    Instance instance = this.instances.remove(name);
+                    if (instance != null) {
+                        instance.markDead("Docker reported " + action);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Lost the Docker event stream, reconnecting in %dms: %s", backoffMs, e);
+            }
 
-            String networkAddress = this.config.networkToUse == null ? //
-                networkSettings.getString("IPAddress") : //
-                networkSettings.getObject("Networks").getObject(this.config.networkToUse).getString("IPAddress");
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoffMs = Math.min(backoffMs * 2, TimeUnit.SECONDS.toMillis(30));
+        }
+    }
 
-            if (SeatOfPants.config.providerInstanceWaitTimeSeconds > 0) {
-                Thread.sleep(SeatOfPants.config.providerInstanceWaitTimeSeconds * 1000);
+    @Override
+    public Instance create(@NonNull String idToUse) throws InstanceCreationException {
+        try {
+            FastLogger logger = LOGGER.createChild("Instance " + idToUse);
+            DockerEngineClient engine = this.engine;
+            int port = this.config.port;
+            boolean pauseIdleInstances = this.config.pauseIdleInstances;
+
+            String image = withTag(this.config.imageToUse);
+            if (this.config.pullPolicy == PullPolicy.ALWAYS) {
+                this.pullShared(engine, image);
+            } // Otherwise use whatever is cached locally, see refreshImage().
+
+            JsonObject body = this.containerBody(image);
+            this.createContainer(engine, idToUse, image, body);
+
+            String networkAddress;
+            try {
+                this.startContainer(engine, idToUse, image, body, logger);
+                networkAddress = this.networkAddress(inspect(engine, idToUse));
+            } catch (IOException e) {
+                // Don't leave a created-but-never-started container lying around.
+                engine.request("DELETE", "/containers/" + idToUse + "?force=true", null, null);
+                throw e;
             }
 
             logger.debug("Created instance! Network address: %s:%d", networkAddress, port);
 
-            return new Instance(idToUse, logger) {
+            Instance instance = new Instance(idToUse, logger) {
+                private final InetSocketAddress socketAddress = new InetSocketAddress(networkAddress, port);
+
                 @Override
-                protected Socket connect() throws IOException {
-                    return new Socket(networkAddress, port);
+                public SocketAddress getSocketAddress() {
+                    return this.socketAddress;
                 }
 
                 @Override
@@ -144,50 +286,330 @@ public class DockerProvider implements InstanceProvider {
                     return String.format("%s:%d", networkAddress, port);
                 }
 
+                @SneakyThrows
                 @Override
                 protected boolean isAlive0() {
-                    try {
-                        return inspect(idToUse, this.logger)
-                            .getObject("State")
-                            .getBoolean("Running");
-                    } catch (IOException e) {
-                        return false;
+                    // Answered from the shared list call. A failed refresh is thrown so that the last
+                    // known state gets kept.
+                    long maxAgeMs = TimeUnit.SECONDS.toMillis(SeatOfPants.config.healthCheckIntervalSeconds) / 2;
+                    boolean isRunning = states.isRunning(idToUse, this.createdAt(), maxAgeMs);
+                    if (!isRunning) {
+                        instances.remove(idToUse);
                     }
+                    return isRunning;
+                }
+
+                @Override
+                protected boolean supportsFreezing() {
+                    return pauseIdleInstances;
+                }
+
+                @Override
+                protected void freeze0() throws IOException {
+                    engine.post("/containers/" + idToUse + "/pause", null).expect();
+                }
+
+                @Override
+                protected void thaw0() throws IOException {
+                    engine.post("/containers/" + idToUse + "/unpause", null).expect();
                 }
 
-                @SneakyThrows
                 @Override
                 protected void close0() {
                     this.logger.trace("Closed.");
-                    new ProcessBuilder(
-                        "docker",
-                        "stop",
-                        idToUse
-                    )
-                        .redirectError(Redirect.PIPE)
-                        .redirectOutput(Redirect.PIPE)
-                        .redirectInput(Redirect.PIPE)
-                        .start()
-                        .waitFor();
+                    instances.remove(idToUse);
+                    try {
+                        // 304 = already stopped, 404 = already removed.
+                        engine.post("/containers/" + idToUse + "/stop", null).expect(204, 304, 404);
+                    } catch (IOException e) {
+                        this.logger.warn("Unable to stop container: %s", e);
+                    }
                 }
             };
+            this.instances.put(idToUse, instance);
+            return instance;
         } catch (Throwable t) {
             throw new InstanceCreationException(t);
         }
     }
 
-    private static JsonObject inspect(String id, FastLogger logger) throws IOException {
-        Process inspectProc = new ProcessBuilder("docker", "inspect", id)
-            .redirectError(Redirect.DISCARD)
-            .redirectOutput(Redirect.PIPE)
-            .redirectInput(Redirect.PIPE)
-            .start();
+    private JsonObject containerBody(String image) {
+        JsonArray env = new JsonArray();
+        for (Map.Entry<String, String> entry : this.config.env.get().entrySet()) {
+            env.add(
+                String.format(
+                    "%s=%s",
+                    entry.getKey(),
+                    entry.getValue()
+                )
+            );
+        }
+
+        JsonObject hostConfig = new JsonObject();
+        hostConfig.put("AutoRemove", true); // --rm
+
+        if (this.config.networkToUse != null) {
+            hostConfig.put("NetworkMode", this.config.networkToUse);
+        }
+
+        if (this.config.cpuLimit > 0) {
+            hostConfig.put("NanoCpus", (long) (this.config.cpuLimit * 1_000_000_000L));
+        }
+
+        if (this.config.memoryLimitGb > 0) {
+            hostConfig.put("Memory", this.config.memoryLimitGb * 1024L * 1024L * 1024L);
+        }
+
+        if (this.config.swapLimitMb == -1) {
+            hostConfig.put("MemorySwap", -1);
+        } else if (this.config.swapLimitMb > 0) {
+            hostConfig.put("MemorySwap", this.config.swapLimitMb * 1024L * 1024L);
+        }
+
+        JsonObject body = new JsonObject();
+        body.put("Image", image);
+        body.put("Env", env);
+        body.put("HostConfig", hostConfig);
+        return body;
+    }
+
+    private void createContainer(DockerEngineClient engine, String name, String image, JsonObject body) throws IOException {
+        String createPath = "/containers/create?name=" + DockerEngineClient.encode(name);
+        DockerEngineClient.Response created = engine.post(createPath, body);
+        if (created.status() == 404 && this.config.pullPolicy == PullPolicy.IF_DIGEST_CHANGED) {
+            // The refresher hasn't gotten the image yet, we have no choice but to wait for it.
+            this.pullShared(engine, image);
+            created = engine.post(createPath, body);
+        }
+        created.expect();
+    }
+
+    /**
+     * Starts the container, restoring it from the golden checkpoint when there
+     * is one for the current image.
+     */
+    private void startContainer(DockerEngineClient engine, String id, String image, JsonObject body, FastLogger logger) throws IOException {
+        Checkpoint checkpoint = this.config.checkpointRestore ? this.currentCheckpoint(engine, image) : null;
+
+        if (checkpoint != null) {
+            long start = System.currentTimeMillis();
+            DockerEngineClient.Response restored = engine.post(
+                String.format(
+                    "/containers/%s/start?checkpoint=%s&checkpoint-dir=%s",
+                    id,
+                    DockerEngineClient.encode(checkpoint.name()),
+                    DockerEngineClient.encode(this.config.checkpointDir)
+                ),
+                null
+            );
+
+            if (restored.isSuccessful()) {
+                this.lastRestoreMilliseconds = System.currentTimeMillis() - start;
+                this.restores.increment();
+                logger.debug("Restored from checkpoint %s in %dms.", checkpoint.name(), this.lastRestoreMilliseconds);
+                return;
+            }
+
+            logger.warn("Unable to restore from checkpoint %s, falling back to a cold start: %s", checkpoint.name(), restored.bodyAsString());
+            this.restoreFallbacks.increment();
+
+            // A failed restore can leave the container unusable, start over with a fresh one.
+            engine.request("DELETE", "/containers/" + id + "?force=true", null, null);
+            this.createContainer(engine, id, image, body);
+        } else if (this.config.checkpointRestore) {
+            this.restoreUnavailable.increment();
+        }
+
+        engine.post("/containers/" + id + "/start", null).expect(204, 304);
+    }
+
+    /**
+     * @return the checkpoint for the image, or null if there isn't one yet (in
+     *         which case one gets made in the background).
+     */
+    private @Nullable Checkpoint currentCheckpoint(DockerEngineClient engine, String image) throws IOException {
+        String imageId = engine.get("/images/" + image + "/json")
+            .expect()
+            .json(JsonObject.class)
+            .getString("Id");
+
+        Checkpoint checkpoint = this.checkpoint;
+        if (checkpoint != null && checkpoint.imageId().equals(imageId)) {
+            return checkpoint;
+        }
+
+        // Missing or made from an older image.
+        if (this.isCheckpointing.compareAndSet(false, true)) {
+            Thread
+                .ofVirtual()
+                .name("Docker checkpoint")
+                .start(() -> {
+                    try {
+                        this.checkpoint = this.createCheckpoint(engine, image, imageId);
+                        LOGGER.info("Created checkpoint %s for %s.", this.checkpoint.name(), image);
+                    } catch (Throwable t) {
+                        LOGGER.warn("Unable to create a checkpoint for %s, instances will cold start:\n%s", image, t);
+                    } finally {
+                        this.isCheckpointing.set(false);
+                    }
+                });
+        }
+        return null;
+    }
+
+    /**
+     * Starts a golden container, waits for it to pass the readiness probe and
+     * then checkpoints it so that new instances can skip straight to that point.
+     */
+    private Checkpoint createCheckpoint(DockerEngineClient engine, String image, String imageId) throws Exception {
+        String goldenId = String.format("SOPGolden.%s.%s", SeatOfPants.config.sopId, UUID.randomUUID().toString());
+        String checkpointName = String.format("sop-%d", System.currentTimeMillis());
+        FastLogger logger = LOGGER.createChild("Golden " + goldenId);
+
+        this.createContainer(engine, goldenId, image, this.containerBody(image));
+        try {
+            engine.post("/containers/" + goldenId + "/start", null).expect(204, 304);
+            String networkAddress = this.networkAddress(inspect(engine, goldenId));
+            int port = this.config.port;
+
+            Instance golden = new Instance(goldenId, logger) {
+                @Override
+                public SocketAddress getSocketAddress() {
+                    return new InetSocketAddress(networkAddress, port);
+                }
+
+                @Override
+                public String getAddress() {
+                    return String.format("%s:%d", networkAddress, port);
+                }
+
+                @Override
+                protected boolean isAlive0() {
+                    return true;
+                }
+
+                @Override
+                protected void close0() {}
+            };
+            ReadinessChecker.awaitReady(golden, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SeatOfPants.config.providerMaxCreationTimeSeconds));
+
+            JsonObject request = new JsonObject();
+            request.put("CheckpointID", checkpointName);
+            request.put("CheckpointDir", this.config.checkpointDir);
+            request.put("Exit", true);
+            engine.post("/containers/" + goldenId + "/checkpoints", request).expect();
+
+            return new Checkpoint(checkpointName, imageId, System.currentTimeMillis());
+        } finally {
+            engine.request("DELETE", "/containers/" + goldenId + "?force=true", null, null);
+        }
+    }
+
+    private String networkAddress(JsonObject inspected) {
+        JsonObject networkSettings = inspected.getObject("NetworkSettings");
+        return this.config.networkToUse == null ? //
+            networkSettings.getString("IPAddress") : //
+            networkSettings.getObject("Networks").getObject(this.config.networkToUse).getString("IPAddress");
+    }
+
+    @Override
+    public void renderMetrics(StringBuilder sb) {
+        if (!this.config.checkpointRestore) return;
+
+        Checkpoint checkpoint = this.checkpoint;
+
+        Metrics.header(sb, "sop_docker_restores_total", "counter", "Instances started from the golden checkpoint.");
+        Metrics.sample(sb, "sop_docker_restores_total", null, this.restores.sum());
+
+        Metrics.header(sb, "sop_docker_restore_fallbacks_total", "counter", "Instances that had to cold start, by reason.");
+        Metrics.sample(sb, "sop_docker_restore_fallbacks_total", "reason=\"failed\"", this.restoreFallbacks.sum());
+        Metrics.sample(sb, "sop_docker_restore_fallbacks_total", "reason=\"unavailable\"", this.restoreUnavailable.sum());
+
+        Metrics.header(sb, "sop_docker_restore_milliseconds", "gauge", "How long the last restore took.");
+        Metrics.sample(sb, "sop_docker_restore_milliseconds", null, this.lastRestoreMilliseconds);
+
+        Metrics.header(sb, "sop_docker_checkpoint_age_seconds", "gauge", "Age of the golden checkpoint, -1 if there isn't one.");
+        Metrics.sample(sb, "sop_docker_checkpoint_age_seconds", null, checkpoint == null ? -1 : TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - checkpoint.createdAt()));
+    }
+
+    /**
+     * Pulls the image, unless another pull finished or started while we were
+     * waiting on the lock. That pull is just as fresh, so a burst of creations
+     * only goes to the registry once.
+     */
+    private void pullShared(DockerEngineClient engine, String image) throws IOException {
+        long wantedAt = System.currentTimeMillis();
+
+        this.pullLock.lock();
+        try {
+            if (this.lastPullStartedAt >= wantedAt) return;
+
+            long startedAt = System.currentTimeMillis();
+            pull(engine, image);
+            this.lastPullStartedAt = startedAt;
+        } finally {
+            this.pullLock.unlock();
+        }
+    }
+
+    /**
+     * Equivalent to `docker pull`, the progress stream is drained and checked for
+     * errors.
+     */
+    private static void pull(DockerEngineClient engine, String image) throws IOException {
+        String path = "/images/create?fromImage=" + DockerEngineClient.encode(image);
+        DockerEngineClient.Response response = engine.request("POST", path, null, registryAuthHeaders(engine)).expect();
+
+        // The status is 200 even if the pull failed mid-way, errors are reported in the
+        // stream itself.
+        for (String line : response.bodyAsString().split("\n")) {
+            if (line.isBlank() || !line.contains("\"error\"")) continue;
+
+            JsonObject progress = Rson.DEFAULT.fromJson(line, JsonObject.class);
+            if (progress.containsKey("error")) {
+                throw new DockerEngineException(response.status(), progress.getString("error"));
+            }
+        }
+    }
+
+    private static boolean hasLocalDigest(DockerEngineClient engine, String image, String digest) throws IOException {
+        DockerEngineClient.Response response = engine.get("/images/" + image + "/json");
+        if (response.status() == 404) return false;
+
+        JsonArray repoDigests = response
+            .expect()
+            .json(JsonObject.class)
+            .getArray("RepoDigests");
+        for (JsonElement e : repoDigests) {
+            if (e.getAsString().endsWith("@" + digest)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static @Nullable Map<String, String> registryAuthHeaders(DockerEngineClient engine) {
+        return engine.getRegistryAuth() == null ? null : Map.of("X-Registry-Auth", engine.getRegistryAuth());
+    }
 
-        String inspectStr = StreamUtil.toString(inspectProc.getInputStream(), StandardCharsets.UTF_8);
-//        logger.debug(inspectStr);
+    /**
+     * Without a tag the Engine would pull every tag of the repository.
+     */
+    private static String withTag(String image) {
+        int lastSlash = image.lastIndexOf('/');
+        if (image.contains("@") || image.indexOf(':', lastSlash + 1) != -1) {
+            return image;
+        }
+        return image + ":latest";
+    }
+
+    private static JsonObject inspect(DockerEngineClient engine, String id) throws IOException {
+        return engine.get("/containers/" + id + "/json")
+            .expect()
+            .json(JsonObject.class);
+    }
 
-        return Rson.DEFAULT.fromJson(inspectStr, JsonArray.class)
-            .getObject(0);
+    private static record Checkpoint(String name, String imageId, long createdAt) {
     }
 
 }
@@ -0,0 +1,132 @@
+package co.casterlabs.seatofpants.providers.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import co.casterlabs.rakurai.json.element.JsonArray;
+import co.casterlabs.rakurai.json.element.JsonElement;
+import co.casterlabs.rakurai.json.element.JsonObject;
+import lombok.NonNull;
+
+/**
+ * The state of every SOP container on the Engine, fetched with a single list
+ * call. Concurrent lookups share one refresh, so the cost of health checking
+ * doesn't grow with the number of instances. One cache lives for as long as
+ * the provider does, reloading the config just points it somewhere else.
+ */
+public class DockerStateCache {
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private volatile DockerEngineClient engine;
+    private volatile String namePrefix;
+
+    private volatile Map<String, String> states = Collections.emptyMap();
+    private volatile long refreshedAt = 0;
+
+    /**
+     * Points the cache at a (possibly different) Engine, the current snapshot is
+     * thrown away so that nothing from the old one leaks through.
+     */
+    public void retarget(@NonNull DockerEngineClient engine, @NonNull String namePrefix) {
+        this.refreshLock.lock();
+        try {
+            this.engine = engine;
+            this.namePrefix = namePrefix;
+            this.states = Collections.emptyMap();
+            this.refreshedAt = 0;
+        } finally {
+            this.refreshLock.unlock();
+        }
+    }
+
+    /**
+     * @param  notBefore   the snapshot must have been taken at or after this time
+     *                     (epoch millis), pass the instance's creation time so
+     *                     that new containers are never missed.
+     * @param  maxAgeMs    how old the snapshot is allowed to be.
+     *
+     * @return             the container's state (e.g "running", "exited"), or
+     *                     null if the container doesn't exist.
+     *
+     * @throws IOException if the snapshot had to be refreshed and that failed.
+     */
+    public String getState(@NonNull String name, long notBefore, long maxAgeMs) throws IOException {
+        long oldest = Math.max(notBefore, System.currentTimeMillis() - maxAgeMs);
+
+        if (this.refreshedAt < oldest) {
+            this.refreshLock.lock();
+            try {
+                // Someone else may have refreshed while we were waiting.
+                if (this.refreshedAt < oldest) {
+                    this.refresh();
+                }
+            } finally {
+                this.refreshLock.unlock();
+            }
+        }
+
+        return this.states.get(name);
+    }
+
+    /**
+     * @return true if the container is running or paused.
+     */
+    public boolean isRunning(@NonNull String name, long notBefore, long maxAgeMs) throws IOException {
+        String state = this.getState(name, notBefore, maxAgeMs);
+        return "running".equals(state) || "paused".equals(state);
+    }
+
+    /**
+     * Records a state change we learned of elsewhere (e.g the events stream).
+     */
+    public void update(@NonNull String name, @NonNull String state) {
+        this.refreshLock.lock();
+        try {
+            Map<String, String> states = new HashMap<>(this.states);
+            states.put(name, state);
+            this.states = states;
+        } finally {
+            this.refreshLock.unlock();
+        }
+    }
+
+    private void refresh() throws IOException {
+        if (this.engine == null) {
+            throw new IOException("Not configured yet.");
+        }
+
+        long startedAt = System.currentTimeMillis();
+
+        JsonArray names = new JsonArray();
+        names.add(this.namePrefix);
+
+        JsonObject filters = new JsonObject();
+        filters.put("name", names);
+
+        JsonArray containers = this.engine
+            .get("/containers/json?all=true&filters=" + DockerEngineClient.encode(filters.toString(false)))
+            .expect()
+            .json(JsonArray.class);
+
+        Map<String, String> states = new HashMap<>();
+        for (JsonElement e : containers) {
+            JsonObject container = e.getAsObject();
+            String state = container.getString("State");
+
+            for (JsonElement n : container.getArray("Names")) {
+                String name = n.getAsString();
+                if (name.startsWith("/")) {
+                    name = name.substring(1);
+                }
+                states.put(name, state);
+            }
+        }
+
+        this.states = states;
+        this.refreshedAt = startedAt;
+    }
+
+}
@@ -4,7 +4,15 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.ProcessBuilder.Redirect;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jetbrains.annotations.Nullable;
 
 import co.casterlabs.rakurai.json.Rson;
 import co.casterlabs.rakurai.json.annotating.JsonClass;
@@ -13,6 +21,8 @@ import co.casterlabs.seatofpants.SeatOfPants;
 import co.casterlabs.seatofpants.providers.Instance;
 import co.casterlabs.seatofpants.providers.InstanceCreationException;
 import co.casterlabs.seatofpants.providers.InstanceProvider;
+import co.casterlabs.seatofpants.providers.ResourceUsage;
+import co.casterlabs.seatofpants.util.Cgroup;
 import co.casterlabs.seatofpants.util.CommandBuilder;
 import co.casterlabs.seatofpants.util.NetworkUtil;
 import lombok.NonNull;
@@ -23,10 +33,24 @@ public class ExecProvider implements InstanceProvider {
     public static final FastLogger LOGGER = SeatOfPants.LOGGER.createChild("Exec Instance Provider");
 
     private Config config;
+    private Cgroup cgroupRoot;
 
     @JsonClass(exposeAll = true)
     private static class Config {
-        private String[] applicationToExec = {};
+        private String[] applicationToExec = {}; // %port% = a random TCP port, %socket% = a unix socket path.
+        private String socketDirectory = null; // Where %socket% paths go, null = the temp directory.
+
+        private boolean useCgroups = false; // Puts each process in its own cgroup, requires cgroup v2 and a delegated subtree.
+        private String cgroupRoot = "/sys/fs/cgroup/seatofpants";
+        private double cpuLimit = -1; // -1 = no limit, 1 = 1 core, 1.5 = 1.5 cores, etc
+        private int memoryLimitGb = -1; // -1 = no limit
+        private int swapLimitMb = 0; // -1 = no limit, 0 = the system default, otherwise memory + swap like Docker
+        private int ioWeight = -1; // 1-10000, -1 = the system default
+        private String[] ioLimitDevices = {}; // "major:minor" of each block device the limits below apply to, e.g 8:0 (see lsblk).
+        private long ioReadBpsLimit = -1; // Bytes per second, -1 = no limit
+        private long ioWriteBpsLimit = -1;
+        private long ioReadIopsLimit = -1; // Operations per second, -1 = no limit
+        private long ioWriteIopsLimit = -1;
 
     }
 
@@ -39,27 +63,51 @@ public class ExecProvider implements InstanceProvider {
     @Override
     public void loadConfig(JsonObject providerConfig) {
         this.config = Rson.DEFAULT.fromJson(providerConfig, Config.class);
+        this.cgroupRoot = this.config.useCgroups ? Cgroup.root(Path.of(this.config.cgroupRoot)) : null;
     }
 
     @Override
     public Instance create(@NonNull String idToUse) throws InstanceCreationException {
         try {
-            int port = NetworkUtil.randomPort();
             FastLogger logger = LOGGER.createChild("Instance " + idToUse);
+            double cpuLimit = this.config.cpuLimit;
+
+            // Prefer the unix socket if the application takes one, there's no port to race for
+            // and no loopback TCP overhead.
+            boolean useSocket = Arrays.stream(this.config.applicationToExec).anyMatch((part) -> part.contains("%socket%"));
+
+            int port = useSocket ? -1 : NetworkUtil.randomPort();
+            Path socketPath = null;
+            if (useSocket) {
+                // Keep it short, unix socket paths are limited to ~100 bytes.
+                String socketDirectory = this.config.socketDirectory == null ? System.getProperty("java.io.tmpdir") : this.config.socketDirectory;
+                socketPath = Path.of(socketDirectory, String.format("sop-%s.sock", idToUse.substring(idToUse.lastIndexOf('.') + 1)));
+                Files.deleteIfExists(socketPath); // Stale.
+            }
 
             CommandBuilder command = new CommandBuilder();
             for (String part : this.config.applicationToExec) {
                 command.add(
                     part
                         .replace("%port%", String.valueOf(port))
+                        .replace("%socket%", useSocket ? socketPath.toString() : "")
                 );
             }
 
-            Process proc = new ProcessBuilder(command.asList())
-                .redirectError(Redirect.PIPE)
-                .redirectOutput(Redirect.PIPE)
-                .redirectInput(Redirect.PIPE)
-                .start();
+            Cgroup cgroup = this.createCgroup(idToUse);
+            List<String> commandLine = cgroup == null ? command.asList() : cgroup.wrap(command.asList());
+
+            Process proc;
+            try {
+                proc = new ProcessBuilder(commandLine)
+                    .redirectError(Redirect.PIPE)
+                    .redirectOutput(Redirect.PIPE)
+                    .redirectInput(Redirect.PIPE)
+                    .start();
+            } catch (IOException e) {
+                if (cgroup != null) cgroup.destroy();
+                throw e;
+            }
 
             Thread
                 .ofVirtual()
@@ -84,29 +132,22 @@ public class ExecProvider implements InstanceProvider {
                     } catch (IOException ignored) {}
                 });
 
-            Thread
-                .ofVirtual()
-                .name("A watchdog thread")
-                .start(() -> {
-                    try {
-                        proc.waitFor();
-                    } catch (InterruptedException ignored) {}
-                    SeatOfPants.tick();
-                });
-
-            if (SeatOfPants.config.providerInstanceWaitTimeSeconds > 0) {
-                Thread.sleep(SeatOfPants.config.providerInstanceWaitTimeSeconds * 1000);
-            }
+            Path finalSocketPath = socketPath;
+            Instance instance = new Instance(idToUse, logger) {
+                private final SocketAddress socketAddress = useSocket ? //
+                    UnixDomainSocketAddress.of(finalSocketPath) : //
+                    new InetSocketAddress("127.0.0.1", port);
 
-            return new Instance(idToUse, logger) {
                 @Override
-                protected Socket connect() throws IOException {
-                    return new Socket("127.0.0.1", port);
+                public SocketAddress getSocketAddress() {
+                    return this.socketAddress;
                 }
 
                 @Override
                 public String getAddress() {
-                    return String.format("127.0.0.1:%d", port);
+                    return useSocket ? //
+                        "unix:" + finalSocketPath : //
+                        String.format("127.0.0.1:%d", port);
                 }
 
                 @Override
@@ -114,15 +155,84 @@ public class ExecProvider implements InstanceProvider {
                     return proc.isAlive();
                 }
 
+                @Override
+                protected @Nullable ResourceUsage resourceUsage0() throws IOException {
+                    if (cgroup == null) return null;
+                    return new ResourceUsage(
+                        cgroup.sampleCpuUsage(),
+                        cpuLimit > 0 ? cpuLimit : -1,
+                        cgroup.getMemoryUsage(),
+                        cgroup.getMemoryLimit()
+                    );
+                }
+
                 @Override
                 protected void close0() {
                     this.logger.trace("Closed.");
                     proc.destroyForcibly();
+                    deleteSocket(finalSocketPath);
                 }
             };
+
+            Thread
+                .ofVirtual()
+                .name("A watchdog thread")
+                .start(() -> {
+                    int code;
+                    try {
+                        code = proc.waitFor();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    deleteSocket(finalSocketPath);
+                    if (cgroup != null) {
+                        cgroup.destroy(); // Takes anything it forked along with it.
+                    }
+                    instance.markDead("process exited with code " + code); // Also kicks the scaler.
+                });
+
+            return instance;
         } catch (Throwable t) {
             throw new InstanceCreationException(t);
         }
     }
 
+    private @Nullable Cgroup createCgroup(String idToUse) throws IOException {
+        if (this.cgroupRoot == null) return null;
+
+        Cgroup cgroup = this.cgroupRoot.createChild(String.format("sop-%s", idToUse.substring(idToUse.lastIndexOf('.') + 1)));
+        try {
+            cgroup.setCpuLimit(this.config.cpuLimit);
+
+            long memoryBytes = this.config.memoryLimitGb > 0 ? this.config.memoryLimitGb * 1024L * 1024L * 1024L : -1;
+            cgroup.setMemoryLimit(memoryBytes);
+
+            if (this.config.swapLimitMb == -1) {
+                cgroup.setSwapLimit(-1);
+            } else if (this.config.swapLimitMb > 0) {
+                // Like Docker's --memory-swap, the limit is memory + swap while cgroups only limit swap.
+                long totalBytes = this.config.swapLimitMb * 1024L * 1024L;
+                cgroup.setSwapLimit(Math.max(0, totalBytes - Math.max(0, memoryBytes)));
+            }
+
+            if (this.config.ioWeight > 0) {
+                cgroup.setIoWeight(this.config.ioWeight);
+            }
+            for (String device : this.config.ioLimitDevices) {
+                cgroup.setIoMax(device, this.config.ioReadBpsLimit, this.config.ioWriteBpsLimit, this.config.ioReadIopsLimit, this.config.ioWriteIopsLimit);
+            }
+            return cgroup;
+        } catch (IOException e) {
+            cgroup.destroy();
+            throw e;
+        }
+    }
+
+    private static void deleteSocket(Path socketPath) {
+        if (socketPath == null) return;
+        try {
+            Files.deleteIfExists(socketPath);
+        } catch (IOException ignored) {}
+    }
+
 }
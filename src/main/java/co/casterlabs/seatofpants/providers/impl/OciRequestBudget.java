@@ -0,0 +1,101 @@
+package co.casterlabs.seatofpants.providers.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.oracle.bmc.model.BmcException;
+
+import co.casterlabs.seatofpants.Metrics;
+import co.casterlabs.seatofpants.util.TokenBucket;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Keeps our OCI calls under the tenancy's rate limits. Each API family gets
+ * its own token bucket, and throttled (429) or failed (5xx) calls are retried
+ * with jittered exponential backoff instead of failing the creation.
+ */
+public class OciRequestBudget {
+    private static final FastLogger LOGGER = OracleContainerInstancesProvider.LOGGER.createChild("Request budget");
+
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final int MAX_BACKOFF_SHIFT = 16; // 500ms << 16 is way past the max, any further and it overflows.
+
+    private final Map<Family, TokenBucket> buckets = new EnumMap<>(Family.class);
+    private final Map<Family, LongAdder> throttled = new EnumMap<>(Family.class);
+    private final Map<Family, LongAdder> transientErrors = new EnumMap<>(Family.class);
+    private final LongAdder retries = new LongAdder();
+
+    private final int maxRetries;
+
+    public OciRequestBudget(double createPerSecond, double deletePerSecond, double readPerSecond, int maxRetries) {
+        this.buckets.put(Family.CREATE, new TokenBucket(createPerSecond, createPerSecond));
+        this.buckets.put(Family.DELETE, new TokenBucket(deletePerSecond, deletePerSecond));
+        this.buckets.put(Family.READ, new TokenBucket(readPerSecond, readPerSecond));
+        this.maxRetries = maxRetries;
+
+        for (Family family : Family.values()) {
+            this.throttled.put(family, new LongAdder());
+            this.transientErrors.put(family, new LongAdder());
+        }
+    }
+
+    public <T> T call(Family family, Supplier<T> request) throws InterruptedException {
+        TokenBucket bucket = this.buckets.get(family);
+
+        for (int attempt = 0;; attempt++) {
+            bucket.acquire();
+            try {
+                return request.get();
+            } catch (BmcException e) {
+                int status = e.getStatusCode();
+                boolean isThrottled = status == 429;
+                boolean isTransient = status >= 500 || status <= 0; // <= 0 = timeouts and other client-side failures.
+
+                if ((!isThrottled && !isTransient) || attempt >= this.maxRetries) {
+                    throw e;
+                }
+
+                if (isThrottled) {
+                    this.throttled.get(family).increment();
+                    bucket.drain(); // Slow everyone down, not just us.
+                } else {
+                    this.transientErrors.get(family).increment();
+                }
+                this.retries.increment();
+
+                // Full jitter, so that everyone who got throttled together doesn't retry together.
+                long backoffMs = ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, MAX_BACKOFF_SHIFT)) + 1);
+                LOGGER.debug("%s request failed with %d, retrying in %dms (attempt %d/%d).", family, status, backoffMs, attempt + 1, this.maxRetries);
+                TimeUnit.MILLISECONDS.sleep(backoffMs);
+            }
+        }
+    }
+
+    public void renderMetrics(StringBuilder sb) {
+        Metrics.header(sb, "sop_oci_throttled_total", "counter", "OCI requests that were throttled (429), by API family.");
+        for (Family family : Family.values()) {
+            Metrics.sample(sb, "sop_oci_throttled_total", "family=\"" + family.name().toLowerCase() + "\"", this.throttled.get(family).sum());
+        }
+
+        Metrics.header(sb, "sop_oci_transient_errors_total", "counter", "OCI requests that failed with a 5xx or timed out, by API family.");
+        for (Family family : Family.values()) {
+            Metrics.sample(sb, "sop_oci_transient_errors_total", "family=\"" + family.name().toLowerCase() + "\"", this.transientErrors.get(family).sum());
+        }
+
+        Metrics.header(sb, "sop_oci_retries_total", "counter", "OCI requests that were retried.");
+        Metrics.sample(sb, "sop_oci_retries_total", null, this.retries.sum());
+    }
+
+    public static enum Family {
+        CREATE,
+        DELETE,
+        READ,
+        ;
+    }
+
+}
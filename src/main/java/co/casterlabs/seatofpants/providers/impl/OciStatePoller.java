@@ -0,0 +1,263 @@
+package co.casterlabs.seatofpants.providers.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.oracle.bmc.containerinstances.ContainerInstanceClient;
+import com.oracle.bmc.containerinstances.model.ContainerInstance;
+import com.oracle.bmc.containerinstances.model.ContainerInstance.LifecycleState;
+import com.oracle.bmc.containerinstances.model.ContainerInstanceSummary;
+import com.oracle.bmc.containerinstances.requests.GetContainerInstanceRequest;
+import com.oracle.bmc.containerinstances.requests.ListContainerInstancesRequest;
+import com.oracle.bmc.containerinstances.responses.ListContainerInstancesResponse;
+import com.oracle.bmc.core.VirtualNetworkClient;
+import com.oracle.bmc.core.requests.GetVnicRequest;
+
+import co.casterlabs.seatofpants.SeatOfPants;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Tracks every SOP container instance in the compartment with one (paged)
+ * list call, instead of a call per instance. Polls quickly while creations
+ * are in flight and backs off as they take longer. There's one for the
+ * provider's lifetime, a config reload just points it at the new settings.
+ */
+public class OciStatePoller {
+    private static final FastLogger LOGGER = OracleContainerInstancesProvider.LOGGER.createChild("State poller");
+
+    private static final long MIN_POLL_MS = 1000;
+    private static final long MAX_CREATING_POLL_MS = 10_000;
+
+    private volatile Target target;
+
+    private final Map<String, PendingCreation> pending = new ConcurrentHashMap<>();
+    private final Map<String, String> privateIps = new ConcurrentHashMap<>();
+
+    private volatile Map<String, ContainerInstanceSummary> states = Map.of();
+    private volatile long refreshedAt = 0;
+
+    private Thread thread;
+
+    /**
+     * Applies to the next poll, instances and creations that are already being
+     * tracked carry over.
+     */
+    public void configure(
+        @NonNull ContainerInstanceClient containerClient,
+        @NonNull VirtualNetworkClient vnicClient,
+        @NonNull OciRequestBudget budget,
+        @NonNull String compartmentId,
+        @NonNull String availabilityDomain,
+        @NonNull String namePrefix
+    ) {
+        this.target = new Target(containerClient, vnicClient, budget, compartmentId, availabilityDomain, namePrefix);
+    }
+
+    public synchronized void start() {
+        if (this.thread != null) return;
+
+        this.thread = Thread
+            .ofVirtual()
+            .name("OCI state poller")
+            .start(() -> {
+                while (true) {
+                    try {
+                        this.poll();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        LOGGER.warn("Unable to list container instances: %s", e);
+                    }
+
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(this.nextPollDelay()));
+                    if (Thread.interrupted()) return;
+                }
+            });
+    }
+
+    public void stop() {
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * @return a future that completes with the instance's private IP once it has
+     *         left the Creating state, or fails if it didn't become Active.
+     */
+    public CompletableFuture<String> awaitCreation(@NonNull String containerId) {
+        PendingCreation creation = new PendingCreation(System.currentTimeMillis(), new CompletableFuture<>());
+        this.pending.put(containerId, creation);
+        LockSupport.unpark(this.thread); // Start polling quickly.
+        return creation.future();
+    }
+
+    public void forget(@NonNull String containerId) {
+        this.pending.remove(containerId);
+        this.privateIps.remove(containerId);
+    }
+
+    /**
+     * @return the last listed state of the instance, or null if we haven't
+     *         listed since notBefore (epoch millis).
+     */
+    public @Nullable LifecycleState getState(@NonNull String containerId, long notBefore) {
+        if (this.refreshedAt < notBefore) return null;
+
+        ContainerInstanceSummary summary = this.states.get(containerId);
+        return summary == null ? LifecycleState.Deleted : summary.getLifecycleState();
+    }
+
+    private long nextPollDelay() {
+        if (this.pending.isEmpty()) {
+            return Math.max(MIN_POLL_MS, TimeUnit.SECONDS.toMillis(SeatOfPants.config.healthCheckIntervalSeconds) / 2);
+        }
+
+        // Poll for the newest creation, a tenth of its age keeps the overshoot at ~10%.
+        long youngestAge = Long.MAX_VALUE;
+        for (PendingCreation creation : this.pending.values()) {
+            youngestAge = Math.min(youngestAge, System.currentTimeMillis() - creation.registeredAt());
+        }
+        return Math.max(MIN_POLL_MS, Math.min(MAX_CREATING_POLL_MS, youngestAge / 10));
+    }
+
+    private void poll() throws InterruptedException {
+        long startedAt = System.currentTimeMillis();
+        Target target = this.target;
+
+        Map<String, ContainerInstanceSummary> states = new HashMap<>();
+        String page = null;
+        do {
+            String $page = page;
+            ListContainerInstancesResponse response = target.budget().call(
+                OciRequestBudget.Family.READ,
+                () -> target.containerClient().listContainerInstances(
+                    ListContainerInstancesRequest.builder()
+                        .compartmentId(target.compartmentId())
+                        .availabilityDomain(target.availabilityDomain())
+                        .limit(100)
+                        .page($page)
+                        .build()
+                )
+            );
+
+            for (ContainerInstanceSummary summary : response.getContainerInstanceCollection().getItems()) {
+                if (summary.getDisplayName() != null && summary.getDisplayName().startsWith(target.namePrefix())) {
+                    states.put(summary.getId(), summary);
+                }
+            }
+
+            page = response.getOpcNextPage();
+        } while (page != null);
+
+        this.states = states;
+        this.refreshedAt = startedAt;
+
+        // Resolve every creation that finished since the last poll.
+        for (Map.Entry<String, PendingCreation> entry : this.pending.entrySet()) {
+            String containerId = entry.getKey();
+            ContainerInstanceSummary summary = states.get(containerId);
+            if (summary == null || summary.getLifecycleState() == LifecycleState.Creating) {
+                continue; // Listing is eventually consistent, it may not show up right away.
+            }
+
+            this.pending.remove(containerId);
+            CompletableFuture<String> future = entry.getValue().future();
+
+            if (summary.getLifecycleState() != LifecycleState.Active) {
+                future.completeExceptionally(
+                    new IllegalStateException(String.format("Container is of state: %s (%s)", summary.getLifecycleState(), summary.getLifecycleDetails()))
+                );
+                continue;
+            }
+
+            try {
+                String privateIp = this.privateIps.get(containerId);
+                if (privateIp == null) {
+                    privateIp = lookupPrivateIp(target, containerId);
+                    this.privateIps.put(containerId, privateIp);
+                }
+                future.complete(privateIp);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Asks OCI about the instance directly, for when the listing hasn't shown it
+     * (e.g the list calls keep failing) and we're out of patience.
+     *
+     * @return the instance's private IP.
+     *
+     * @throws IllegalStateException if the instance isn't Active.
+     */
+    public String resolveDirectly(@NonNull String containerId) throws InterruptedException {
+        Target target = this.target;
+        ContainerInstance instance = getContainerInstance(target, containerId);
+        if (instance.getLifecycleState() != LifecycleState.Active) {
+            throw new IllegalStateException(String.format("Container is of state: %s (%s)", instance.getLifecycleState(), instance.getLifecycleDetails()));
+        }
+
+        String privateIp = lookupPrivateIp(target, instance);
+        this.privateIps.put(containerId, privateIp);
+        return privateIp;
+    }
+
+    private static ContainerInstance getContainerInstance(Target target, String containerId) throws InterruptedException {
+        return target.budget().call(
+            OciRequestBudget.Family.READ,
+            () -> target.containerClient().getContainerInstance(
+                GetContainerInstanceRequest.builder()
+                    .containerInstanceId(containerId)
+                    .build()
+            )
+        )
+            .getContainerInstance();
+    }
+
+    private static String lookupPrivateIp(Target target, String containerId) throws InterruptedException {
+        return lookupPrivateIp(target, getContainerInstance(target, containerId));
+    }
+
+    private static String lookupPrivateIp(Target target, ContainerInstance instance) throws InterruptedException {
+        String vnicId = instance
+            .getVnics()
+            .get(0)
+            .getVnicId();
+
+        return target.budget().call(
+            OciRequestBudget.Family.READ,
+            () -> target.vnicClient().getVnic(
+                GetVnicRequest.builder()
+                    .vnicId(vnicId)
+                    .build()
+            )
+        )
+            .getVnic()
+            .getPrivateIp();
+    }
+
+    private static record PendingCreation(long registeredAt, CompletableFuture<String> future) {
+    }
+
+    private static record Target(
+        ContainerInstanceClient containerClient,
+        VirtualNetworkClient vnicClient,
+        OciRequestBudget budget,
+        String compartmentId,
+        String availabilityDomain,
+        String namePrefix
+    ) {
+    }
+
+}
@@ -1,12 +1,16 @@
 package co.casterlabs.seatofpants.providers.impl;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 import com.oracle.bmc.ConfigFileReader;
@@ -24,22 +28,20 @@ import com.oracle.bmc.containerinstances.model.CreateContainerInstanceShapeConfi
 import com.oracle.bmc.containerinstances.model.CreateContainerVnicDetails;
 import com.oracle.bmc.containerinstances.requests.CreateContainerInstanceRequest;
 import com.oracle.bmc.containerinstances.requests.DeleteContainerInstanceRequest;
-import com.oracle.bmc.containerinstances.requests.GetContainerInstanceRequest;
 import com.oracle.bmc.containerinstances.responses.CreateContainerInstanceResponse;
-import com.oracle.bmc.containerinstances.responses.GetContainerInstanceResponse;
 import com.oracle.bmc.core.VirtualNetworkClient;
-import com.oracle.bmc.core.requests.GetVnicRequest;
-import com.oracle.bmc.core.responses.GetVnicResponse;
 import com.oracle.bmc.http.client.jersey.JerseyClientProperties;
 
 import co.casterlabs.rakurai.json.Rson;
 import co.casterlabs.rakurai.json.annotating.JsonClass;
 import co.casterlabs.rakurai.json.element.JsonObject;
+import co.casterlabs.seatofpants.Metrics;
 import co.casterlabs.seatofpants.SeatOfPants;
 import co.casterlabs.seatofpants.providers.Instance;
 import co.casterlabs.seatofpants.providers.InstanceCreationException;
 import co.casterlabs.seatofpants.providers.InstanceProvider;
 import co.casterlabs.seatofpants.util.Environment;
+import co.casterlabs.seatofpants.util.ResizableSemaphore;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
@@ -49,6 +51,10 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
 
     private ContainerInstanceClient containerClient;
     private VirtualNetworkClient vnicClient;
+    private final OciStatePoller poller = new OciStatePoller();
+    private OciRequestBudget budget;
+    private final ResizableSemaphore creationSlots = new ResizableSemaphore(1);
+    private final AtomicInteger creationsWaiting = new AtomicInteger(0);
 
     private Config config;
 
@@ -82,6 +88,13 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
         public String subnetId; // Open the VCN page, go to the desired subnet and copy the OCID.
         public int port = 8000;
 
+        // Rate limits, see https://docs.oracle.com/en-us/iaas/Content/General/Concepts/servicelimits.htm
+        public double createRequestsPerSecond = 1;
+        public double deleteRequestsPerSecond = 2;
+        public double readRequestsPerSecond = 10;
+        public int maxRequestRetries = 6; // For throttled (429) and failed (5xx) requests.
+        public int maxConcurrentCreations = 4; // Creations beyond this wait their turn.
+
     }
 
     @Override
@@ -119,17 +132,67 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
                 builder.property(JerseyClientProperties.USE_APACHE_CONNECTOR, false);
             })
             .build(provider);
+
+        this.budget = new OciRequestBudget(
+            this.config.createRequestsPerSecond,
+            this.config.deleteRequestsPerSecond,
+            this.config.readRequestsPerSecond,
+            this.config.maxRequestRetries
+        );
+        this.creationSlots.resize(Math.max(1, this.config.maxConcurrentCreations)); // Creations holding a slot keep it.
+
+        // Keep the same poller, instances and pending creations are still waiting on it.
+        this.poller.configure(
+            this.containerClient,
+            this.vnicClient,
+            this.budget,
+            this.config.compartmentId,
+            this.config.availabilityDomain,
+            String.format("SOP.%s.", SeatOfPants.config.sopId)
+        );
+        this.poller.start();
+    }
+
+    @Override
+    public void renderMetrics(StringBuilder sb) {
+        this.budget.renderMetrics(sb);
+
+        Metrics.header(sb, "sop_oci_creations_waiting", "gauge", "Creations waiting for a slot in the creation pipeline.");
+        Metrics.sample(sb, "sop_oci_creations_waiting", null, this.creationsWaiting.get());
+
+        Metrics.header(sb, "sop_oci_creations_in_flight", "gauge", "Creations currently talking to OCI.");
+        Metrics.sample(sb, "sop_oci_creations_in_flight", null, this.creationSlots.inUse());
     }
 
     @Override
     public Instance create(@NonNull String idToUse) throws InstanceCreationException {
+        try {
+            this.creationsWaiting.incrementAndGet();
+            try {
+                this.creationSlots.acquire();
+            } finally {
+                this.creationsWaiting.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            throw new InstanceCreationException(e);
+        }
+
+        try {
+            return this.create0(idToUse);
+        } finally {
+            this.creationSlots.release();
+        }
+    }
+
+    private Instance create0(String idToUse) throws InstanceCreationException {
         Runnable destroyInstance = null;
+        String pollingFor = null;
+        OciRequestBudget budget = this.budget;
 
         try {
             FastLogger logger = LOGGER.createChild("Instance " + idToUse);
 
             String containerId;
-            String vnicId;
             String privateIp;
 
             long startedCreatingAt = System.currentTimeMillis();
@@ -197,10 +260,19 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
                     );
                 }
 
-                CreateContainerInstanceResponse containerCreationResponse = this.containerClient.createContainerInstance(
-                    CreateContainerInstanceRequest.builder()
-                        .createContainerInstanceDetails(createContainerInstanceDetails.build())
-                        .build()
+                // The budget retries timeouts and 5xxs, which may have gone through on OCI's end. The retry
+                // token makes those retries give us back the same instance instead of creating another.
+                // It's capped at 64 characters, so derive one from the id rather than using it directly.
+                String retryToken = UUID.nameUUIDFromBytes(idToUse.getBytes(StandardCharsets.UTF_8)).toString();
+
+                CreateContainerInstanceResponse containerCreationResponse = budget.call(
+                    OciRequestBudget.Family.CREATE,
+                    () -> this.containerClient.createContainerInstance(
+                        CreateContainerInstanceRequest.builder()
+                            .createContainerInstanceDetails(createContainerInstanceDetails.build())
+                            .opcRetryToken(retryToken)
+                            .build()
+                    )
                 );
                 containerId = containerCreationResponse.getContainerInstance().getId();
                 logger.debug("containerId=%s", containerId);
@@ -208,67 +280,47 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
             }
 
             destroyInstance = () -> {
-                this.containerClient.deleteContainerInstance(
-                    DeleteContainerInstanceRequest.builder()
-                        .containerInstanceId(containerId)
-                        .build()
-                );
+                try {
+                    budget.call(
+                        OciRequestBudget.Family.DELETE,
+                        () -> this.containerClient.deleteContainerInstance(
+                            DeleteContainerInstanceRequest.builder()
+                                .containerInstanceId(containerId)
+                                .build()
+                        )
+                    );
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             };
             SeatOfPants.runOnClose.add(destroyInstance); // In case the deletion needs to occur before SOP knows about the instance.
 
-            {
-                LifecycleState state;
-                String stateMessage;
-                ContainerInstance updated;
-                do {
-                    updated = this.containerClient.getContainerInstance(
-                        GetContainerInstanceRequest.builder()
-                            .containerInstanceId(containerId)
-                            .build()
-                    )
-                        .getContainerInstance();
-                    state = updated
-                        .getLifecycleState();
-                    stateMessage = updated.getLifecycleDetails();
-                    logger.trace("Waiting for container: %s (%s)", state, stateMessage);
-
-                    Thread.sleep(5000); // Check every 5s for a new status.
-                } while (state == LifecycleState.Creating);
-
-                if (state != LifecycleState.Active) {
-                    throw new IllegalStateException(String.format("Container is of state: %s (%s)", state, stateMessage));
-                }
-
-                vnicId = updated
-                    .getVnics()
-                    .get(0)
-                    .getVnicId();
-                logger.debug("vnicId=%s", vnicId);
-            }
-            {
-                GetVnicResponse vnicResponse = this.vnicClient.getVnic(
-                    GetVnicRequest.builder()
-                        .vnicId(vnicId)
-                        .build()
-                );
-
-                privateIp = vnicResponse.getVnic().getPrivateIp();
-
-                logger.debug("privateIp=%s", privateIp);
-            }
-
-            if (SeatOfPants.config.providerInstanceWaitTimeSeconds > 0) {
-                Thread.sleep(SeatOfPants.config.providerInstanceWaitTimeSeconds * 1000);
+            // The poller resolves every in-flight creation with one list call.
+            pollingFor = containerId;
+            // Don't wait on the poller forever, its list calls may be failing or the instance may never show
+            // up in them. Leave some of the creation time for asking OCI directly.
+            long waitMs = startedCreatingAt + (long) (TimeUnit.SECONDS.toMillis(SeatOfPants.config.providerMaxCreationTimeSeconds) * .9) - System.currentTimeMillis();
+            try {
+                privateIp = this.poller.awaitCreation(containerId).get(Math.max(0, waitMs), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Poller didn't see the instance become Active in time, asking OCI directly.");
+                this.poller.forget(containerId);
+                pollingFor = null;
+                privateIp = this.poller.resolveDirectly(containerId); // Throws if it isn't Active, which cleans it up below.
             }
+            logger.debug("privateIp=%s", privateIp);
 
             SeatOfPants.runOnClose.remove(destroyInstance); // SOP will take it from here :)
             logger.debug("Created! Took %.2fs.", (System.currentTimeMillis() - startedCreatingAt) / 1000d);
 
             Runnable $destroyInstance_ptr = destroyInstance;
+            OciStatePoller poller = this.poller;
             return new Instance(idToUse, logger) {
+                private final InetSocketAddress socketAddress = new InetSocketAddress(privateIp, config.port);
+
                 @Override
-                protected Socket connect() throws IOException {
-                    return new Socket(privateIp, config.port);
+                public SocketAddress getSocketAddress() {
+                    return this.socketAddress;
                 }
 
                 @Override
@@ -278,15 +330,12 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
 
                 @Override
                 protected boolean isAlive0() {
-                    GetContainerInstanceResponse current = containerClient.getContainerInstance(
-                        GetContainerInstanceRequest.builder()
-                            .containerInstanceId(containerId)
-                            .build()
-                    );
+                    LifecycleState state = poller.getState(containerId, this.createdAt());
+                    if (state == null) {
+                        return true; // Not listed since we were created, assume the best.
+                    }
 
-                    boolean alive = current.get__httpStatusCode__() == 200 && current
-                        .getContainerInstance()
-                        .getLifecycleState() == LifecycleState.Active;
+                    boolean alive = state == LifecycleState.Active;
 
                     if (!alive) {
                         // Do cleanup.
@@ -298,6 +347,7 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
 
                 @Override
                 protected void close0() {
+                    poller.forget(containerId);
                     try {
                         $destroyInstance_ptr.run();
                     } catch (Exception e) {
@@ -306,6 +356,9 @@ public class OracleContainerInstancesProvider implements InstanceProvider {
                 }
             };
         } catch (Throwable t) {
+            if (pollingFor != null) {
+                this.poller.forget(pollingFor);
+            }
             if (destroyInstance != null) {
                 Thread.ofVirtual().start(destroyInstance);
             }
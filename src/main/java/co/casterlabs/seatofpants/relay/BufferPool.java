@@ -0,0 +1,151 @@
+package co.casterlabs.seatofpants.relay;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.casterlabs.rakurai.json.element.JsonObject;
+import co.casterlabs.seatofpants.SeatOfPants;
+import lombok.NonNull;
+
+/**
+ * A bounded pool of reusable direct buffers, so that steady-state relaying
+ * doesn't allocate and never copies through the Java heap.
+ * 
+ * <p>
+ * Direct memory lives outside of the heap limit, so the amount of direct
+ * buffers (checked out + pooled) is capped at {@link #maxDirectBuffers}. Past
+ * that, misses are served with heap buffers, which are slower (the JDK copies
+ * them through a temporary direct buffer) but can't exhaust native memory.
+ * Those are counted as overflows.
+ */
+public class BufferPool {
+    public final int bufferSize;
+    public final int poolSize;
+    public final int maxDirectBuffers;
+
+    private final ArrayBlockingQueue<ByteBuffer> pool;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final AtomicInteger directBuffers = new AtomicInteger(0);
+    private final LongAdder buffersInUse = new LongAdder();
+    private final LongAdder bytesInFlight = new LongAdder();
+
+    /**
+     * @param maxDirectBuffers -1 for no cap.
+     */
+    public BufferPool(int bufferSize, int poolSize, int maxDirectBuffers) {
+        this.bufferSize = bufferSize;
+        this.poolSize = poolSize;
+        this.maxDirectBuffers = maxDirectBuffers;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * The pool is sized from the config when it's first used, changing the size
+     * requires a restart.
+     */
+    public static BufferPool get() {
+        return Holder.INSTANCE;
+    }
+
+    public ByteBuffer acquire() {
+        this.buffersInUse.increment();
+
+        ByteBuffer buffer = this.pool.poll();
+        if (buffer != null) {
+            this.hits.increment();
+            return buffer;
+        }
+
+        this.misses.increment();
+        if (this.tryClaimDirect()) {
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        }
+
+        this.overflows.increment();
+        return ByteBuffer.allocate(this.bufferSize);
+    }
+
+    private boolean tryClaimDirect() {
+        if (this.maxDirectBuffers == -1) {
+            this.directBuffers.incrementAndGet();
+            return true;
+        }
+
+        while (true) {
+            int current = this.directBuffers.get();
+            if (current >= this.maxDirectBuffers) return false;
+            if (this.directBuffers.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * @implNote Buffers that don't fit back into the pool (and heap overflow
+     *           buffers) are left for the GC to free.
+     */
+    public void release(@NonNull ByteBuffer buffer) {
+        this.buffersInUse.decrement();
+        if (!buffer.isDirect()) return;
+
+        buffer.clear();
+        if (!this.pool.offer(buffer)) {
+            this.directBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Tracks bytes that have been read from one side but not yet written to the
+     * other. Use a negative amount once they've been written.
+     */
+    public void addInFlight(long bytes) {
+        this.bytesInFlight.add(bytes);
+    }
+
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return how many misses had to fall back to a heap buffer because the
+     *         direct buffer cap was reached.
+     */
+    public long overflows() {
+        return this.overflows.sum();
+    }
+
+    public long buffersInUse() {
+        return this.buffersInUse.sum();
+    }
+
+    public long bytesInFlight() {
+        return this.bytesInFlight.sum();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.put("bufferSize", this.bufferSize);
+        json.put("poolSize", this.poolSize);
+        json.put("maxDirectBuffers", this.maxDirectBuffers);
+        json.put("directBuffers", this.directBuffers.get());
+        json.put("pooled", this.pool.size());
+        json.put("inUse", this.buffersInUse());
+        json.put("hits", this.hits());
+        json.put("misses", this.misses());
+        json.put("overflows", this.overflows());
+        json.put("bytesInFlight", this.bytesInFlight());
+        return json;
+    }
+
+    private static class Holder {
+        private static final BufferPool INSTANCE = new BufferPool(SeatOfPants.config.relayBufferSize, SeatOfPants.config.relayBufferPoolSize, SeatOfPants.config.relayMaxDirectBuffers);
+    }
+
+}
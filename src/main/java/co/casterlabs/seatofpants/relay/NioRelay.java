@@ -0,0 +1,300 @@
+package co.casterlabs.seatofpants.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.casterlabs.seatofpants.Metrics;
+import co.casterlabs.seatofpants.SeatOfPants;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+
+/**
+ * An event-loop relay. A small fixed set of I/O threads, each with their own
+ * {@link Selector}, pump bytes for every connection.
+ */
+public class NioRelay implements Relay {
+    private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform()
+            .name("NIO Relay retry timer")
+            .daemon(true)
+            .factory()
+    );
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    public NioRelay(int threads) {
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            this.loops[i] = new EventLoop();
+            Thread
+                .ofPlatform()
+                .name("NIO Relay #" + i)
+                .daemon(true)
+                .priority(Thread.MAX_PRIORITY)
+                .start(this.loops[i]::run);
+        }
+    }
+
+    @Override
+    public void relay(@NonNull RelaySession session) {
+        EventLoop loop = this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+        Pipe pipe = new Pipe(loop, session);
+        loop.submit(pipe::connect);
+    }
+
+    private static class EventLoop {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        @SneakyThrows
+        EventLoop() {
+            this.selector = Selector.open();
+        }
+
+        void submit(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Pipe pipe = (Pipe) key.attachment();
+                        pipe.handle(key);
+                    }
+                } catch (Throwable t) {
+                    SeatOfPants.LOGGER.severe("Error in NIO relay loop:\n%s", t);
+                }
+            }
+        }
+    }
+
+    /**
+     * All of the relay state for one session. Only ever touched by its own
+     * loop's thread.
+     */
+    private static class Pipe {
+        private final EventLoop loop;
+        private final RelaySession session;
+
+        private final Direction clientToInstance;
+        private final Direction instanceToClient;
+
+        private SocketChannel backend;
+        private SelectionKey clientKey;
+        private SelectionKey backendKey;
+        private int retryCount = 0;
+
+        Pipe(EventLoop loop, RelaySession session) {
+            this.loop = loop;
+            this.session = session;
+            this.clientToInstance = new Direction(session.instance.counters, true);
+            this.instanceToClient = new Direction(session.instance.counters, false);
+
+            // Closing can happen from any thread, so hop back onto the loop to give the
+            // buffers back.
+            session.setCleanup(() -> loop.submit(this::release));
+        }
+
+        private void release() {
+            this.clientToInstance.release();
+            this.instanceToClient.release();
+        }
+
+        void connect() {
+            if (this.session.isClosed()) return;
+
+            try {
+                SocketAddress address = this.session.instance.getSocketAddress();
+                this.backend = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+                this.backend.configureBlocking(false);
+                this.session.attachBackend(this.backend);
+
+                if (this.backend.connect(address)) {
+                    this.onConnected();
+                } else {
+                    this.backendKey = this.backend.register(this.loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                this.retry(e);
+            }
+        }
+
+        private void retry(IOException e) {
+            if (this.backend != null) {
+                RelaySession.closeQuietly(this.backend);
+            }
+            if (this.session.isClosed()) return;
+
+            if (this.retryCount >= SeatOfPants.config.providerMaxRetries) {
+                this.session.instance.logger.severe("Timed out whilst adopting:\n%s", e);
+                this.session.close();
+                return;
+            }
+
+            this.retryCount++;
+            this.session.instance.counters.connectRetried();
+
+            // Try to give the process enough time to start up.
+            retryTimer.schedule(() -> this.loop.submit(this::connect), 100, TimeUnit.MILLISECONDS);
+        }
+
+        private void onConnected() throws IOException {
+            this.session.client.configureBlocking(false);
+            this.clientKey = this.session.client.register(this.loop.selector, SelectionKey.OP_READ, this);
+
+            if (this.backendKey == null) {
+                this.backendKey = this.backend.register(this.loop.selector, SelectionKey.OP_READ, this);
+            } else {
+                this.backendKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void handle(SelectionKey key) {
+            if (this.session.isClosed()) return;
+
+            if (!key.isValid()) {
+                this.session.close();
+                return;
+            }
+
+            if (key.isConnectable()) {
+                try {
+                    this.backend.finishConnect();
+                    this.onConnected();
+                } catch (IOException e) {
+                    this.backendKey = null;
+                    this.retry(e);
+                }
+                return;
+            }
+
+            try {
+                boolean isClient = key == this.clientKey;
+                Direction inbound = isClient ? this.clientToInstance : this.instanceToClient;
+                Direction outbound = isClient ? this.instanceToClient : this.clientToInstance;
+
+                if (key.isReadable()) {
+                    SocketChannel self = isClient ? this.session.client : this.backend;
+                    SocketChannel other = isClient ? this.backend : this.session.client;
+
+                    if (!inbound.read(self)) {
+                        this.session.close();
+                        return;
+                    }
+                    inbound.flush(other);
+                }
+
+                if (key.isWritable()) {
+                    outbound.flush(isClient ? this.session.client : this.backend);
+                }
+
+                this.session.touch();
+                this.updateInterest();
+            } catch (IOException | CancelledKeyException e) {
+                this.session.close();
+            }
+        }
+
+        private void updateInterest() {
+            // Stop reading from a side while the other side hasn't caught up yet.
+            this.clientKey.interestOps(
+                (this.clientToInstance.hasPending() ? 0 : SelectionKey.OP_READ) |
+                    (this.instanceToClient.hasPending() ? SelectionKey.OP_WRITE : 0)
+            );
+            this.backendKey.interestOps(
+                (this.instanceToClient.hasPending() ? 0 : SelectionKey.OP_READ) |
+                    (this.clientToInstance.hasPending() ? SelectionKey.OP_WRITE : 0)
+            );
+        }
+    }
+
+    /**
+     * One direction of a pipe. A pooled buffer is only held while there's data
+     * waiting to be written, so idle connections don't pin any memory.
+     */
+    private static class Direction {
+        private final Metrics.InstanceCounters counters;
+        private final boolean isClientToInstance;
+
+        private ByteBuffer buffer;
+
+        Direction(Metrics.InstanceCounters counters, boolean isClientToInstance) {
+            this.counters = counters;
+            this.isClientToInstance = isClientToInstance;
+        }
+
+        /**
+         * @return false if the source has hit EOF.
+         */
+        boolean read(SocketChannel source) throws IOException {
+            if (this.buffer == null) {
+                this.buffer = BufferPool.get().acquire();
+            }
+
+            int read = source.read(this.buffer);
+            if (read > 0) {
+                BufferPool.get().addInFlight(read);
+                this.counters.addBytes(this.isClientToInstance, read);
+            }
+            return read != -1;
+        }
+
+        /**
+         * The buffer is always left in "fill" mode, any data before the position is
+         * still waiting to be written out.
+         */
+        void flush(SocketChannel destination) throws IOException {
+            if (this.buffer == null) return;
+
+            this.buffer.flip();
+            int written = destination.write(this.buffer);
+            this.buffer.compact();
+            BufferPool.get().addInFlight(-written);
+
+            if (this.buffer.position() == 0) {
+                this.release();
+            }
+        }
+
+        boolean hasPending() {
+            return this.buffer != null && this.buffer.position() > 0;
+        }
+
+        void release() {
+            if (this.buffer == null) return;
+
+            BufferPool.get().addInFlight(-this.buffer.position());
+            BufferPool.get().release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+}
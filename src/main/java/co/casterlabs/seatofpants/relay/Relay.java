@@ -0,0 +1,17 @@
+package co.casterlabs.seatofpants.relay;
+
+import lombok.NonNull;
+
+public interface Relay {
+
+    /**
+     * Connects to the session's instance and pumps bytes in both directions until
+     * either side hangs up.
+     *
+     * @implNote This method must not block. The relay takes ownership of the
+     *           session and will always call {@link RelaySession#close()} once
+     *           it's done.
+     */
+    public void relay(@NonNull RelaySession session);
+
+}
@@ -0,0 +1,127 @@
+package co.casterlabs.seatofpants.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import co.casterlabs.seatofpants.SeatOfPants;
+import co.casterlabs.seatofpants.providers.Instance;
+import lombok.NonNull;
+
+/**
+ * A single client connection that has been placed onto an instance.
+ */
+public class RelaySession {
+    private static final Set<RelaySession> active = ConcurrentHashMap.newKeySet();
+
+    public final Instance instance;
+    public final SocketChannel client;
+    public final SocketAddress clientAddress;
+
+    private final Consumer<RelaySession> onClose;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile SocketChannel backend;
+    private volatile Runnable cleanup;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    static {
+        Thread
+            .ofVirtual()
+            .name("Relay idle reaper")
+            .start(() -> {
+                while (true) {
+                    try {
+                        TimeUnit.SECONDS.sleep(15);
+                    } catch (InterruptedException ignored) {}
+
+                    for (RelaySession session : new ArrayList<>(active)) {
+                        if (!session.client.isOpen() || session.isIdle()) {
+                            // Either timed out or closed out from underneath us.
+                            session.close();
+                        }
+                    }
+                }
+            });
+    }
+
+    public RelaySession(@NonNull Instance instance, @NonNull SocketChannel client, @NonNull Consumer<RelaySession> onClose) {
+        this.instance = instance;
+        this.client = client;
+        this.clientAddress = client.socket().getRemoteSocketAddress(); // Still readable after close, unlike getRemoteAddress().
+        this.onClose = onClose;
+        active.add(this);
+    }
+
+    /**
+     * Hands the session the connected instance channel. If the session has
+     * already been closed then the channel gets closed immediately.
+     */
+    public void attachBackend(@NonNull SocketChannel backend) {
+        this.backend = backend;
+        if (this.closed.get()) {
+            closeQuietly(backend);
+        }
+    }
+
+    /**
+     * Sets a task to be run once the session has been closed, e.g to give back
+     * buffers.
+     */
+    public void setCleanup(@NonNull Runnable cleanup) {
+        this.cleanup = cleanup;
+    }
+
+    public void touch() {
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    public boolean isIdle() {
+        return System.currentTimeMillis() - this.lastActivity > SeatOfPants.SO_TIMEOUT;
+    }
+
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
+    /**
+     * Closes both sides of the session. Safe to call from any thread, any number
+     * of times.
+     */
+    public void close() {
+        if (!this.closed.compareAndSet(false, true)) return;
+
+        active.remove(this);
+        closeQuietly(this.client);
+
+        SocketChannel backend = this.backend;
+        if (backend != null) {
+            closeQuietly(backend);
+        }
+
+        Runnable cleanup = this.cleanup;
+        if (cleanup != null) {
+            cleanup.run();
+        }
+
+        this.onClose.accept(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s", this.client.hashCode(), this.clientAddress);
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+}
@@ -0,0 +1,86 @@
+package co.casterlabs.seatofpants.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import co.casterlabs.seatofpants.SeatOfPants;
+import lombok.NonNull;
+
+/**
+ * The classic relay, two blocking threads per connection (one per direction).
+ * See {@link SeatOfPants#connectionThread()} for the type of thread used.
+ */
+public class ThreadedRelay implements Relay {
+    @Override
+    public void relay(@NonNull RelaySession session) {
+        SeatOfPants.connectionThread()
+            .name(String.format("TCP #%d->%s", session.client.hashCode(), session.instance.id))
+            .start(() -> {
+                try {
+                    SocketChannel backend = this.connect(session);
+                    if (backend == null) return;
+
+                    SeatOfPants.connectionThread()
+                        .name(String.format("TCP #%d<-%s", session.client.hashCode(), session.instance.id))
+                        .start(() -> pump(session, backend, session.client, false));
+
+                    pump(session, session.client, backend, true);
+                } catch (Throwable t) {
+                    session.instance.logger.fatal(t);
+                } finally {
+                    session.close();
+                }
+            });
+    }
+
+    private SocketChannel connect(RelaySession session) {
+        int retryCount = 0;
+        while (!session.isClosed()) {
+            try {
+                SocketChannel backend = SocketChannel.open(session.instance.getSocketAddress());
+                session.attachBackend(backend);
+                return backend;
+            } catch (IOException e) {
+                if (retryCount >= SeatOfPants.config.providerMaxRetries) {
+                    session.instance.logger.severe("Timed out whilst adopting:\n%s", e);
+                    return null;
+                }
+
+                retryCount++;
+                session.instance.counters.connectRetried();
+
+                try {
+                    Thread.sleep(100); // Try to give the process enough time to start up.
+                } catch (InterruptedException ignored) {}
+            }
+        }
+        return null;
+    }
+
+    private static void pump(RelaySession session, SocketChannel source, SocketChannel destination, boolean isClientToInstance) {
+        BufferPool pool = BufferPool.get();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                pool.addInFlight(read);
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        destination.write(buffer);
+                    }
+                } finally {
+                    pool.addInFlight(-read);
+                }
+                buffer.clear();
+                session.instance.counters.addBytes(isClientToInstance, read);
+                session.touch();
+            }
+        } catch (IOException ignored) {} finally {
+            session.close(); // Wakes up the other direction.
+            pool.release(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package co.casterlabs.seatofpants.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lombok.NonNull;
+
+/**
+ * A cgroup v2 directory. SOP needs to be given a delegated subtree (e.g via
+ * systemd's Delegate=yes) for this to work.
+ */
+public class Cgroup {
+    private static final long CPU_PERIOD_MICROS = 100_000;
+
+    private final Path path;
+
+    private long lastCpuUsageMicros = -1;
+    private long lastSampledAt = -1;
+
+    private Cgroup(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Creates the root for our children and enables the controllers we need on
+     * it.
+     */
+    public static Cgroup root(@NonNull Path path) throws IOException {
+        Files.createDirectories(path);
+        Files.writeString(path.resolve("cgroup.subtree_control"), "+cpu +memory +io");
+        return new Cgroup(path);
+    }
+
+    public Cgroup createChild(@NonNull String name) throws IOException {
+        Path child = this.path.resolve(name);
+        Files.createDirectories(child);
+        return new Cgroup(child);
+    }
+
+    /**
+     * @param cores e.g 1.5 for one and a half cores, <= 0 for no limit.
+     */
+    public void setCpuLimit(double cores) throws IOException {
+        String max = cores > 0 ? String.valueOf((long) (cores * CPU_PERIOD_MICROS)) : "max";
+        this.write("cpu.max", String.format("%s %d", max, CPU_PERIOD_MICROS));
+    }
+
+    /**
+     * @param bytes <= 0 for no limit.
+     */
+    public void setMemoryLimit(long bytes) throws IOException {
+        this.write("memory.max", bytes > 0 ? String.valueOf(bytes) : "max");
+    }
+
+    /**
+     * @param bytes < 0 for no limit.
+     */
+    public void setSwapLimit(long bytes) throws IOException {
+        this.write("memory.swap.max", bytes >= 0 ? String.valueOf(bytes) : "max");
+    }
+
+    /**
+     * @param weight 1-10000, relative to siblings.
+     */
+    public void setIoWeight(int weight) throws IOException {
+        this.write("io.weight", String.format("default %d", weight));
+    }
+
+    /**
+     * Hard limits on a single block device, unlike {@link #setIoWeight(int)}
+     * these apply even when there's no contention.
+     *
+     * @param device "major:minor", e.g 8:0 (see lsblk).
+     * @param rbps   read bytes per second, <= 0 for no limit.
+     * @param wbps   write bytes per second, <= 0 for no limit.
+     * @param riops  read operations per second, <= 0 for no limit.
+     * @param wiops  write operations per second, <= 0 for no limit.
+     */
+    public void setIoMax(@NonNull String device, long rbps, long wbps, long riops, long wiops) throws IOException {
+        this.write(
+            "io.max",
+            String.format("%s rbps=%s wbps=%s riops=%s wiops=%s", device, ioMax(rbps), ioMax(wbps), ioMax(riops), ioMax(wiops))
+        );
+    }
+
+    private static String ioMax(long value) {
+        return value > 0 ? String.valueOf(value) : "max";
+    }
+
+    /**
+     * @return the command, wrapped so that the process joins this cgroup before
+     *         it execs (and therefore before it can fork anything).
+     */
+    public List<String> wrap(@NonNull List<String> command) {
+        return new CommandBuilder()
+            .add("/bin/sh", "-c", "echo $$ > \"$0\" && exec \"$@\"", this.path.resolve("cgroup.procs").toString())
+            .add(command)
+            .asList();
+    }
+
+    public long getMemoryUsage() throws IOException {
+        return Long.parseLong(this.read("memory.current"));
+    }
+
+    /**
+     * @return the memory limit in bytes, -1 if there is none.
+     */
+    public long getMemoryLimit() throws IOException {
+        String max = this.read("memory.max");
+        return max.equals("max") ? -1 : Long.parseLong(max);
+    }
+
+    /**
+     * @return the amount of cores used on average since the last call, -1 on the
+     *         first call.
+     */
+    public synchronized double sampleCpuUsage() throws IOException {
+        long usageMicros = -1;
+        for (String line : this.read("cpu.stat").split("\n")) {
+            if (line.startsWith("usage_usec ")) {
+                usageMicros = Long.parseLong(line.substring("usage_usec ".length()).trim());
+                break;
+            }
+        }
+
+        long now = System.nanoTime();
+        double cores = -1;
+        if (this.lastSampledAt != -1 && now > this.lastSampledAt) {
+            long elapsedMicros = TimeUnit.NANOSECONDS.toMicros(now - this.lastSampledAt);
+            cores = (usageMicros - this.lastCpuUsageMicros) / (double) elapsedMicros;
+        }
+
+        this.lastCpuUsageMicros = usageMicros;
+        this.lastSampledAt = now;
+        return cores;
+    }
+
+    /**
+     * Kills everything in the cgroup and removes it.
+     */
+    public void destroy() {
+        try {
+            if (Files.exists(this.path.resolve("cgroup.kill"))) {
+                this.write("cgroup.kill", "1"); // Linux 5.14+
+            }
+        } catch (IOException ignored) {}
+
+        // The kernel needs a moment to reap everything before the directory can go.
+        for (int attempt = 0; attempt < 20; attempt++) {
+            try {
+                Files.deleteIfExists(this.path);
+                return;
+            } catch (IOException e) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(50);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void write(String file, String value) throws IOException {
+        Files.writeString(this.path.resolve(file), value);
+    }
+
+    private String read(String file) throws IOException {
+        return Files.readString(this.path.resolve(file), StandardCharsets.UTF_8).trim();
+    }
+
+}
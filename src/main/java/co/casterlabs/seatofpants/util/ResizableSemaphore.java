@@ -0,0 +1,41 @@
+package co.casterlabs.seatofpants.util;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fair semaphore whose limit can be changed while permits are held. Shrinking
+ * it doesn't revoke anything, it just holds back releases until the holders are
+ * back under the new limit.
+ */
+public class ResizableSemaphore extends Semaphore {
+    private static final long serialVersionUID = -2650414431460919432L;
+
+    private int limit;
+
+    public ResizableSemaphore(int limit) {
+        super(limit, true);
+        this.limit = limit;
+    }
+
+    public synchronized void resize(int newLimit) {
+        int delta = newLimit - this.limit;
+        if (delta > 0) {
+            this.release(delta);
+        } else if (delta < 0) {
+            this.reducePermits(-delta);
+        }
+        this.limit = newLimit;
+    }
+
+    public synchronized int limit() {
+        return this.limit;
+    }
+
+    /**
+     * @return how many permits are currently held.
+     */
+    public int inUse() {
+        return this.limit() - this.availablePermits();
+    }
+
+}
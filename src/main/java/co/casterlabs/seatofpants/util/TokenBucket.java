@@ -0,0 +1,68 @@
+package co.casterlabs.seatofpants.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A classic token bucket, refills at a steady rate up to a burst capacity.
+ */
+public class TokenBucket {
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final double ratePerSecond;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefillAt = System.nanoTime();
+
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+    }
+
+    /**
+     * Blocks until a token is available and takes it.
+     */
+    public void acquire() throws InterruptedException {
+        while (true) {
+            long waitNanos;
+
+            this.lock.lock();
+            try {
+                this.refill();
+                if (this.tokens >= 1) {
+                    this.tokens--;
+                    return;
+                }
+                waitNanos = (long) ((1 - this.tokens) / this.ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+            } finally {
+                this.lock.unlock();
+            }
+
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, waitNanos));
+        }
+    }
+
+    /**
+     * Empties the bucket, e.g after being throttled so that every caller backs
+     * off and not just the one that got told to.
+     */
+    public void drain() {
+        this.lock.lock();
+        try {
+            this.refill();
+            this.tokens = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsedSeconds = (now - this.lastRefillAt) / (double) TimeUnit.SECONDS.toNanos(1);
+        this.tokens = Math.min(this.capacity, this.tokens + elapsedSeconds * this.ratePerSecond);
+        this.lastRefillAt = now;
+    }
+
+}
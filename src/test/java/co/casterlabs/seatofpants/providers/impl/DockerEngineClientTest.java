@@ -0,0 +1,228 @@
+package co.casterlabs.seatofpants.providers.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.casterlabs.seatofpants.providers.impl.DockerEngineClient.DockerEngineException;
+import co.casterlabs.seatofpants.providers.impl.DockerEngineClient.Response;
+
+public class DockerEngineClientTest {
+    private Path socketPath;
+    private FakeEngine engine;
+    private DockerEngineClient client;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        this.socketPath = Files.createTempDirectory("sop-test").resolve("docker.sock");
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        if (this.client != null) this.client.close();
+        if (this.engine != null) this.engine.close();
+        Files.deleteIfExists(this.socketPath);
+        Files.deleteIfExists(this.socketPath.getParent());
+    }
+
+    private void start(Responder responder) throws IOException {
+        this.engine = new FakeEngine(this.socketPath, responder);
+        this.client = new DockerEngineClient(this.socketPath.toString());
+    }
+
+    @Test
+    public void contentLengthBody() throws IOException {
+        this.start((request, index) -> "HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello world");
+
+        Response response = this.client.get("/_ping");
+        assertEquals(200, response.status());
+        assertEquals("hello world", response.bodyAsString());
+    }
+
+    @Test
+    public void chunkedBody() throws IOException {
+        this.start((request, index) -> "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n"
+            + "6;ext=1\r\n world\r\n"
+            + "0\r\n"
+            + "X-Trailer: 1\r\n"
+            + "\r\n");
+
+        Response response = this.client.get("/containers/json");
+        assertEquals("hello world", response.bodyAsString());
+
+        // The trailer must have been consumed, or the next response would be garbage.
+        assertEquals("hello world", this.client.get("/containers/json").bodyAsString());
+        assertEquals(1, this.engine.accepted.get());
+    }
+
+    @Test
+    public void keepAliveReusesTheConnection() throws IOException {
+        this.start((request, index) -> "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK");
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("OK", this.client.get("/_ping").bodyAsString());
+        }
+        assertEquals(1, this.engine.accepted.get());
+        assertEquals(5, this.engine.requests.size());
+    }
+
+    @Test
+    public void connectionCloseIsHonored() throws IOException {
+        this.start((request, index) -> "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nOK");
+
+        this.client.get("/_ping");
+        this.client.get("/_ping");
+        assertEquals(2, this.engine.accepted.get());
+    }
+
+    @Test
+    public void errorStatusIsMapped() throws IOException {
+        String body = "{\"message\":\"No such container: abc\"}";
+        this.start((request, index) -> "HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+
+        Response response = this.client.get("/containers/abc/json");
+        assertEquals(404, response.status());
+
+        DockerEngineException e = assertThrows(DockerEngineException.class, () -> response.expect());
+        assertEquals(404, e.status);
+        assertTrue(e.getMessage().contains("No such container: abc"), e.getMessage());
+
+        // Explicitly allowed statuses pass through.
+        assertEquals(response, response.expect(200, 404));
+    }
+
+    @Test
+    public void idempotentRequestIsRetriedOnAStaleConnection() throws IOException {
+        // The second request on the first connection gets hung up on, like an Engine restart would.
+        this.start((request, index) -> index == 1 ? null : "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK");
+
+        this.client.get("/_ping");
+        assertEquals("OK", this.client.get("/_ping").bodyAsString());
+        assertEquals(2, this.engine.accepted.get());
+    }
+
+    @Test
+    public void postIsNotReplayedOnceSent() throws IOException {
+        this.start((request, index) -> index == 1 ? null : "HTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\n{}");
+
+        this.client.post("/containers/create", null);
+        assertThrows(IOException.class, () -> this.client.post("/containers/create", null));
+
+        long creates = this.engine.requests.stream().filter((r) -> r.startsWith("POST /containers/create")).count();
+        assertEquals(2, creates); // Not 3.
+    }
+
+    @FunctionalInterface
+    private static interface Responder {
+
+        /**
+         * @param index the request's index across all connections.
+         *
+         * @return the raw response, or null to hang up without one.
+         */
+        public String respond(String requestLine, int index);
+
+    }
+
+    /**
+     * Speaks just enough HTTP/1.1 on a unix socket to stand in for the Engine.
+     */
+    private static class FakeEngine implements AutoCloseable {
+        private final ServerSocketChannel server;
+        private final Responder responder;
+
+        final AtomicInteger accepted = new AtomicInteger(0);
+        final List<String> requests = new CopyOnWriteArrayList<>();
+
+        FakeEngine(Path socketPath, Responder responder) throws IOException {
+            this.responder = responder;
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            this.server.bind(UnixDomainSocketAddress.of(socketPath));
+
+            Thread
+                .ofVirtual()
+                .name("Fake Engine")
+                .start(() -> {
+                    while (true) {
+                        SocketChannel channel;
+                        try {
+                            channel = this.server.accept();
+                        } catch (IOException e) {
+                            return;
+                        }
+                        this.accepted.incrementAndGet();
+                        Thread.ofVirtual().start(() -> this.serve(channel));
+                    }
+                });
+        }
+
+        private void serve(SocketChannel channel) {
+            try (channel) {
+                InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+                OutputStream out = Channels.newOutputStream(channel);
+
+                while (true) {
+                    String requestLine = readLine(in);
+                    if (requestLine == null) return;
+
+                    int contentLength = 0;
+                    String line;
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                        if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+                        }
+                    }
+                    in.readNBytes(contentLength);
+
+                    int index = this.requests.size();
+                    this.requests.add(requestLine);
+
+                    String response = this.responder.respond(requestLine, index);
+                    if (response == null) return;
+
+                    out.write(response.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException ignored) {}
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (b != '\r') line.write(b);
+            }
+            if (b == -1 && line.size() == 0) return null;
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.server.close();
+        }
+    }
+
+}